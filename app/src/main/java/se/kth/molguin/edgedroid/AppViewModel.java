@@ -21,6 +21,8 @@ import android.arch.lifecycle.AndroidViewModel;
 import android.arch.lifecycle.LiveData;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+
 import se.kth.molguin.edgedroid.network.control.ControlClient;
 
 public class AppViewModel extends AndroidViewModel {
@@ -45,11 +47,11 @@ public class AppViewModel extends AndroidViewModel {
         return this.client.getRTTFeed();
     }
 
-    public LiveData<byte[]> getRealTimeFrameFeed() {
+    public LiveData<ByteBuffer> getRealTimeFrameFeed() {
         return this.client.getRealTimeFrameFeed();
     }
 
-    public LiveData<byte[]> getSentFrameFeed() {
+    public LiveData<ByteBuffer> getSentFrameFeed() {
         return this.client.getSentFrameFeed();
     }
 
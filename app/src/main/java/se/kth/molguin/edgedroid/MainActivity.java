@@ -18,6 +18,7 @@ package se.kth.molguin.edgedroid;
 
 import android.arch.lifecycle.Observer;
 import android.arch.lifecycle.ViewModelProviders;
+import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.os.Bundle;
@@ -28,6 +29,7 @@ import android.view.WindowManager;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import java.nio.ByteBuffer;
 import java.util.Locale;
 
 public class MainActivity extends AppCompatActivity {
@@ -57,15 +59,15 @@ public class MainActivity extends AppCompatActivity {
 
         // find the viewmodel
         AppViewModel viewModel = ViewModelProviders.of(this).get(AppViewModel.class);
-        viewModel.getRealTimeFrameFeed().observe(this, new Observer<byte[]>() {
+        viewModel.getRealTimeFrameFeed().observe(this, new Observer<ByteBuffer>() {
             @Override
-            public void onChanged(@Nullable byte[] frame) {
+            public void onChanged(@Nullable ByteBuffer frame) {
                 MainActivity.this.handleRealTimeFrameUpdate(frame);
             }
         });
-        viewModel.getSentFrameFeed().observe(this, new Observer<byte[]>() {
+        viewModel.getSentFrameFeed().observe(this, new Observer<ByteBuffer>() {
             @Override
-            public void onChanged(@Nullable byte[] frame) {
+            public void onChanged(@Nullable ByteBuffer frame) {
                 MainActivity.this.handleSentFrameUpdate(frame);
             }
         });
@@ -102,12 +104,21 @@ public class MainActivity extends AppCompatActivity {
         this.log_view.log(logEntry.log);
     }
 
-    public void handleRealTimeFrameUpdate(byte[] frame) {
-        this.new_frame_view.setImageBitmap(BitmapFactory.decodeByteArray(frame, 0, frame.length));
+    private static Bitmap decodeFrame(ByteBuffer frame) {
+        // frames are read-only slices of the memory-mapped traces, so we need to copy them out
+        // through a private view before decoding
+        final ByteBuffer view = frame.duplicate();
+        final byte[] data = new byte[view.remaining()];
+        view.get(data);
+        return BitmapFactory.decodeByteArray(data, 0, data.length);
     }
 
-    public void handleSentFrameUpdate(byte[] frame) {
-        this.sent_frame_view.setImageBitmap(BitmapFactory.decodeByteArray(frame, 0, frame.length));
+    public void handleRealTimeFrameUpdate(ByteBuffer frame) {
+        this.new_frame_view.setImageBitmap(decodeFrame(frame));
+    }
+
+    public void handleSentFrameUpdate(ByteBuffer frame) {
+        this.sent_frame_view.setImageBitmap(decodeFrame(frame));
     }
 
     public void handleShutdownMessage(@NonNull ShutdownMessage message) {
@@ -24,6 +24,7 @@ import android.support.annotation.NonNull;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -38,6 +39,7 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Locale;
@@ -50,14 +52,25 @@ import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 import se.kth.molguin.edgedroid.IntegratedAsyncLog;
 import se.kth.molguin.edgedroid.ShutdownMessage;
 import se.kth.molguin.edgedroid.SingleLiveEvent;
 import se.kth.molguin.edgedroid.network.DataIOStreams;
 import se.kth.molguin.edgedroid.network.control.experiment.Config;
+import se.kth.molguin.edgedroid.network.control.experiment.Sockets;
+import se.kth.molguin.edgedroid.network.control.experiment.StepFiles;
 import se.kth.molguin.edgedroid.network.control.experiment.run.Run;
 import se.kth.molguin.edgedroid.network.control.experiment.run.RunStats;
+import se.kth.molguin.edgedroid.network.control.experiment.run.StatsWriter;
+import se.kth.molguin.edgedroid.network.task.FrameScheduler;
+import se.kth.molguin.edgedroid.network.task.StepCache;
+import se.kth.molguin.edgedroid.network.task.StepTrace;
+import se.kth.molguin.edgedroid.network.task.TraceArchive;
+import se.kth.molguin.edgedroid.network.task.TraceIndex;
+import se.kth.molguin.edgedroid.network.task.TraceSource;
 import se.kth.molguin.edgedroid.synchronization.INTPSync;
 import se.kth.molguin.edgedroid.synchronization.NTPClient;
 
@@ -96,13 +109,17 @@ public class ControlClient {
     private final IntegratedAsyncLog log;
     private final ReentrantLock lock;
 
-    private final MutableLiveData<byte[]> realTimeFrameFeed;
-    private final MutableLiveData<byte[]> sentFrameFeed;
+    private final MutableLiveData<ByteBuffer> realTimeFrameFeed;
+    private final MutableLiveData<ByteBuffer> sentFrameFeed;
     private final MutableLiveData<Double> rtt_feed;
     private final SingleLiveEvent<ShutdownMessage> shutdownEvent;
 
     private final AtomicBoolean running_flag;
+    private final FrameScheduler frame_scheduler; // shared by all runs in the session
     private Future internal_task;
+    private TraceSource traces;
+    private StepCache step_cache; // null if disabled
+    private Sockets backend; // kept open across runs if connections are persistent, null otherwise
 
     /**
      * Helper static method.
@@ -139,6 +156,7 @@ public class ControlClient {
         this.log = log;
 
         this.running_flag = new AtomicBoolean(false);
+        this.frame_scheduler = new FrameScheduler(log);
 
         this.realTimeFrameFeed = new MutableLiveData<>();
         this.sentFrameFeed = new MutableLiveData<>();
@@ -165,11 +183,11 @@ public class ControlClient {
         return this.rtt_feed;
     }
 
-    public LiveData<byte[]> getRealTimeFrameFeed() {
+    public LiveData<ByteBuffer> getRealTimeFrameFeed() {
         return this.realTimeFrameFeed;
     }
 
-    public LiveData<byte[]> getSentFrameFeed() {
+    public LiveData<ByteBuffer> getSentFrameFeed() {
         return this.sentFrameFeed;
     }
 
@@ -183,6 +201,7 @@ public class ControlClient {
     public void init() {
         this.running_flag.set(true);
         this.log.i(LOG_TAG, "Initializing...");
+        this.frame_scheduler.start();
         this.internal_task = this.exec.submit(new Runnable() {
             @Override
             public void run() {
@@ -276,6 +295,8 @@ public class ControlClient {
                     log.w(LOG_TAG, "Shutting down...");
                     // shut down
                     running_flag.set(false);
+                    frame_scheduler.shutdown();
+                    closeBackend();
                     // done, now notify UI!
                     shutdownEvent.postValue(new ShutdownMessage(success, total_runs, msg));
                 }
@@ -336,6 +357,13 @@ public class ControlClient {
         final Config config = new Config(readJSONFromRemote(ioStreams.getDataInputStream()));
         this.notifyCommandStatus(ioStreams, true);
 
+        // if we have a trace archive, steps can be verified against the checksums in its header
+        final StepFiles step_files = new StepFiles(this.appContext);
+        final TraceArchive archive = config.pack_traces ? this.openTraceArchive() : null;
+        final String[] checksums = new String[config.num_steps];
+        final boolean[] archived = new boolean[config.num_steps];
+        boolean archive_valid = archive != null && archive.getNumSteps() == config.num_steps;
+
         // wait for steps
         for (int i = 1; i <= config.num_steps; i++) {
             switch (ioStreams.readInt()) {
@@ -360,17 +388,113 @@ public class ControlClient {
                 throw new ControlException("Received step in wrong order!");
             }
 
-            final boolean found = this.checkStep(index, checksum);
+            checksums[i - 1] = checksum.toUpperCase(Locale.ENGLISH);
+            archived[i - 1] = archive != null
+                    && checksums[i - 1].equals(archive.getChecksum(i - 1))
+                    && this.verifyArchivedStep(archive, i - 1, checksums[i - 1]);
+            archive_valid = archive_valid && archived[i - 1];
+            if (archived[i - 1])
+                this.log.i(LOG_TAG, "Step " + i + " found in trace archive!");
+
+            final boolean found = archived[i - 1] || this.checkStep(index, checksum);
             this.notifyCommandStatus(ioStreams, found);
             if (!found)
                 // step was not found, download it
                 this.receiveStep(index, size, checksum, ioStreams);
         }
 
+        if (!config.pack_traces)
+            this.traces = step_files;
+        else if (archive_valid)
+            this.traces = archive;
+        else
+            this.traces = this.packTraceArchive(archive, archived, step_files, checksums);
+
+        // keep loaded steps in memory across runs
+        if (config.step_cache_bytes > 0) {
+            this.step_cache = new StepCache(this.traces, config.step_cache_bytes);
+            this.traces = this.step_cache;
+        }
+
         this.log.i(LOG_TAG, "Got all steps -- fully configured for experiment!");
         return config;
     }
 
+    private TraceArchive openTraceArchive() {
+        final File archive_file = this.appContext.getFileStreamPath(ControlConst.TRACE_ARCHIVE);
+        if (!archive_file.exists())
+            return null;
+
+        try {
+            return TraceArchive.map(archive_file);
+        } catch (IOException e) {
+            this.log.w(LOG_TAG, "Existing trace archive is invalid, ignoring it.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Hashes a step as stored in the trace archive and compares it to the checksum from Control.
+     * This is the only time archived steps are read before playback, so it also pages them in.
+     *
+     * @param archive  Trace archive.
+     * @param index    0-based index of the step.
+     * @param checksum Hex-encoded MD5 checksum of the step, in upper case.
+     * @return Whether the archived step is intact.
+     */
+    private boolean verifyArchivedStep(@NonNull TraceArchive archive, int index, @NonNull String checksum) {
+        try {
+            final String archived_chksum = archive.computeChecksum(index);
+            if (checksum.equals(archived_chksum))
+                return true;
+
+            this.log.w(LOG_TAG, String.format(Locale.ENGLISH,
+                    "Step %d is corrupt in trace archive. Remote: %s\tArchived: %s",
+                    index + 1, checksum, archived_chksum));
+        } catch (IOException e) {
+            this.log.w(LOG_TAG, "Could not verify step " + (index + 1) + " in trace archive.", e);
+        }
+        return false;
+    }
+
+    /**
+     * Packs all verified steps into a new trace archive.
+     * Steps which were verified in the previous archive are copied over from it.
+     *
+     * @param prev_archive Previous trace archive, may be null.
+     * @param archived     Whether each step was verified in the previous archive, in which case
+     *                     it was not checked or downloaded as an individual step file.
+     * @param step_files   Individual step files.
+     * @param checksums    Verified checksums for every step.
+     * @return The new archive or, if packing failed, a source combining the previous archive and
+     * the individual step files.
+     */
+    private TraceSource packTraceArchive(final TraceArchive prev_archive,
+                                         @NonNull final boolean[] archived,
+                                         @NonNull final StepFiles step_files,
+                                         @NonNull final String[] checksums) {
+        this.log.i(LOG_TAG, "Packing steps into trace archive...");
+        final File archive_file = this.appContext.getFileStreamPath(ControlConst.TRACE_ARCHIVE);
+        final TraceSource[] sources = new TraceSource[checksums.length];
+        for (int i = 0; i < checksums.length; i++)
+            sources[i] = archived[i] ? prev_archive : step_files;
+
+        try {
+            TraceArchive.pack(archive_file, sources, checksums);
+            return TraceArchive.map(archive_file);
+        } catch (IOException | JSONException e) {
+            // steps only found in the previous archive have no up-to-date step file, so keep
+            // reading those from the archive
+            this.log.w(LOG_TAG, "Could not pack trace archive, using previous archive and individual step files.", e);
+            return new TraceSource() {
+                @Override
+                public StepTrace getStep(int index) throws IOException, JSONException {
+                    return sources[index].getStep(index);
+                }
+            };
+        }
+    }
+
     private INTPSync ntpSync(@NonNull DataIOStreams ioStreams,
                              @NonNull NTPClient ntp) throws IOException, ShutdownCommandException, ControlException {
         // wait for initial NTP synchronization command
@@ -414,9 +538,15 @@ public class ControlClient {
         this.notifyCommandStatus(ioStreams, true);
 
         // run experiment here
-        final Run current_run = new Run(config, ntpsync, this.appContext,
+        final Run current_run = new Run(config, ntpsync, this.traces, this.frame_scheduler,
                 this.log, this.realTimeFrameFeed, this.sentFrameFeed, this.rtt_feed);
-        current_run.executeAndWait();
+        final Sockets sockets = this.connectBackend(config);
+        try {
+            current_run.executeAndWait(sockets);
+        } finally {
+            if (!config.persistent_connections || !sockets.isReusable())
+                this.closeBackend();
+        }
 
         // wait for run to finish, then notify
         ioStreams.writeInt(ControlConst.MSG_EXPERIMENT_FINISH);
@@ -446,28 +576,160 @@ public class ControlClient {
         ports.put(ControlConst.EXPPORTS_RESULT, config.result_port);
         results.put(ControlConst.Stats.FIELD_PORTS, ports);
 
-        // finally, add the actual stats to the payload
-        results.put(ControlConst.Stats.FIELD_RUNRESULTS, current_run.getRunStats());
+        if (this.step_cache != null) {
+            // cache counters are cumulative over the whole session
+            final JSONObject cache_stats = new JSONObject();
+            cache_stats.put(ControlConst.Stats.STEPCACHEFIELD_HITS, this.step_cache.getHits());
+            cache_stats.put(ControlConst.Stats.STEPCACHEFIELD_MISSES, this.step_cache.getMisses());
+            cache_stats.put(ControlConst.Stats.STEPCACHEFIELD_EVICTIONS, this.step_cache.getEvictions());
+            cache_stats.put(ControlConst.Stats.STEPCACHEFIELD_BYTES, this.step_cache.getCachedBytes());
+            results.put(ControlConst.Stats.FIELD_STEPCACHE, cache_stats);
+
+            this.log.i(LOG_TAG, String.format(Locale.ENGLISH,
+                    "Step cache: %d hits, %d misses, %d evictions, %d bytes cached",
+                    this.step_cache.getHits(), this.step_cache.getMisses(),
+                    this.step_cache.getEvictions(), this.step_cache.getCachedBytes()));
+        }
 
-        // upload stats and return
+        // finally, add the actual stats to the payload, upload and return
         this.log.i(LOG_TAG, "Sending statistics...");
-        final byte[] payload = results.toString().getBytes("UTF-8");
-        this.log.i(LOG_TAG, String.format(Locale.ENGLISH, "Payload size: %d bytes", payload.length));
+        this.sendStats(ioStreams, config.stats_encoding, results, current_run.getRunStats());
 
-        try (
-                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                final DataOutputStream outStream = new DataOutputStream(baos)) {
-            outStream.writeInt(payload.length);
-            outStream.write(payload);
+        return current_run.succeeded();
 
-            ioStreams.write(baos.toByteArray());
-            ioStreams.flush();
+    }
+
+
+    /**
+     * Uploads the stats of a run, as a length-prefixed payload in the encoding requested by
+     * Control.
+     * <p>
+     * The stats are streamed straight onto the socket, since on long runs they are far too large
+     * to comfortably hold in memory as a JSONObject, a String and a byte array all at once. Plain
+     * JSON and the columnar encoding are serialized twice, first just to count the bytes for the
+     * length prefix; compressed JSON is small enough to be buffered instead.
+     *
+     * @param results   General experiment data, to which the run stats are added.
+     * @param run_stats Stats of the run.
+     */
+    private void sendStats(@NonNull DataIOStreams ioStreams, @NonNull StatsWriter.Encoding encoding,
+                           @NonNull final JSONObject results, @NonNull final RunStats.Snapshot run_stats)
+            throws IOException, JSONException {
+
+        final boolean columnar = (encoding == StatsWriter.Encoding.COLUMNAR);
+        final StatsWriter.Source document = new StatsWriter.Source() {
+            @Override
+            public void writeTo(StatsWriter writer) throws IOException, JSONException {
+                writer.beginObject();
+                writer.entries(results);
+                writer.name(ControlConst.Stats.FIELD_RUNRESULTS);
+                if (columnar)
+                    run_stats.withoutFrames().writeTo(writer);
+                else
+                    run_stats.writeTo(writer);
+                writer.endObject();
+            }
+        };
+
+        final long length;
+        final long written;
+        switch (encoding) {
+            case DEFLATE: {
+                // favor speed, most of the redundancy in the stats is in the repeated field names
+                final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                try (final DeflaterOutputStream deflaterOut = new DeflaterOutputStream(compressed, deflater)) {
+                    StatsWriter.write(document, deflaterOut);
+                    deflaterOut.finish();
+                } finally {
+                    deflater.end();
+                }
+
+                length = compressed.size();
+                ioStreams.writeInt((int) length);
+                compressed.writeTo(ioStreams.getDataOutputStream());
+                written = length;
+                break;
+            }
+            case COLUMNAR: {
+                // version, length of the JSON document, JSON document, frame columns
+                final long json_length = StatsWriter.measure(document);
+                length = 1 + 4 + json_length + run_stats.getFrameColumnsSize();
+                if (length > Integer.MAX_VALUE)
+                    throw new IOException("Stats payload too large: " + length + " bytes");
+
+                final DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(ioStreams.getDataOutputStream()));
+                out.writeInt((int) length);
+                out.writeByte(ControlConst.STATS_COLUMNAR_VERSION);
+                out.writeInt((int) json_length);
+                StatsWriter.write(document, out);
+                run_stats.writeFrameColumns(out);
+                out.flush();
+
+                written = out.size() - 4; // minus the length prefix
+                break;
+            }
+            case JSON:
+            default: {
+                length = StatsWriter.measure(document);
+                if (length > Integer.MAX_VALUE)
+                    throw new IOException("Stats payload too large: " + length + " bytes");
+
+                ioStreams.writeInt((int) length);
+                written = StatsWriter.write(document, ioStreams.getDataOutputStream());
+                break;
+            }
         }
+        ioStreams.flush();
 
-        return current_run.succeeded();
+        if (written != length)
+            // Control has now read a corrupted payload, we can't recover from that
+            throw new IOException(String.format(Locale.ENGLISH,
+                    "Stats changed while being sent: announced %d bytes, sent %d", length, written));
+
+        this.log.i(LOG_TAG, String.format(Locale.ENGLISH, "Payload size: %d bytes (%s)",
+                length, encoding.name().toLowerCase(Locale.ENGLISH)));
+    }
+
+    /**
+     * Obtains connections to the backend for a new run, reusing the ones from the previous run if
+     * they were kept open and the backend acknowledges the reset.
+     *
+     * @param config Experiment config.
+     * @return Connections ready for a new run.
+     */
+    private Sockets connectBackend(@NonNull Config config) throws ExecutionException, InterruptedException {
+        if (this.backend != null) {
+            if (this.backend.reset()) {
+                this.log.i(LOG_TAG, String.format(Locale.ENGLISH,
+                        "Reusing backend connections (reset in %.2f ms, %d late results discarded).",
+                        this.backend.getSetupTime(), this.backend.getDiscardedMessages()));
+                return this.backend;
+            }
 
+            this.log.w(LOG_TAG, "Could not reset backend connections, reconnecting...");
+            this.closeBackend();
+        }
+
+        this.log.i(LOG_TAG, "Connecting to backend...");
+        this.backend = new Sockets(config);
+        this.log.i(LOG_TAG, String.format(Locale.ENGLISH,
+                "Connected to backend in %.2f ms.", this.backend.getSetupTime()));
+        return this.backend;
     }
 
+    private void closeBackend() {
+        if (this.backend == null)
+            return;
+
+        try {
+            this.backend.close();
+        } catch (IOException e) {
+            this.log.w(LOG_TAG, "Error closing backend connections.", e);
+        }
+        this.backend = null;
+    }
 
     /**
      * Notifies the ControlServer of the status of a recent command.
@@ -517,6 +779,7 @@ public class ControlClient {
             }
 
             this.log.i(LOG_TAG, String.format(Locale.ENGLISH, "%s found locally!", filename));
+            this.ensureStepIndex(step_file, data);
             return true;
 
         } catch (FileNotFoundException e) {
@@ -558,11 +821,40 @@ public class ControlClient {
             // this.log.i(LOG_TAG, String.format(Locale.ENGLISH, "Saving %s locally", filename));
             f_out.write(data);
         }
+        this.writeStepIndex(this.appContext.getFileStreamPath(filename), data);
         this.log.i(LOG_TAG, "Successfully received step " + index + ".");
         this.notifyCommandStatus(ioStreams, true);
 
     }
 
+    /**
+     * Makes sure a valid frame index exists for a verified step, generating it if necessary.
+     *
+     * @param step_file Step trace file.
+     * @param data      Contents of the step trace file.
+     */
+    private void ensureStepIndex(@NonNull File step_file, @NonNull byte[] data) {
+        final File index_file = TraceIndex.indexFileFor(step_file);
+        if (index_file.exists()) {
+            try {
+                if (TraceIndex.read(index_file).matches(data.length, step_file.lastModified()))
+                    return;
+            } catch (IOException ignored) {
+                // invalid index, regenerate it
+            }
+        }
+        this.writeStepIndex(step_file, data);
+    }
+
+    private void writeStepIndex(@NonNull File step_file, @NonNull byte[] data) {
+        try {
+            TraceIndex.build(data).write(TraceIndex.indexFileFor(step_file), step_file.lastModified());
+        } catch (IOException e) {
+            // not fatal, traces can still be opened without an index
+            this.log.w(LOG_TAG, "Could not generate frame index for " + step_file.getName(), e);
+        }
+    }
+
     public void cancel() {
         // forcibly aborts execution
         this.log.w(LOG_TAG, "cancel() called!");
@@ -571,6 +863,7 @@ public class ControlClient {
             this.running_flag.set(false);
             this.internal_task.cancel(true);
             this.exec.shutdownNow();
+            this.frame_scheduler.shutdown();
         } finally {
             this.lock.unlock();
         }
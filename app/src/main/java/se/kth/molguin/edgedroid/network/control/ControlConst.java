@@ -27,9 +27,41 @@ public final class ControlConst {
     public static final String EXPPORTS_VIDEO = "video";
     public static final String EXPPORTS_CONTROL = "control";
     public static final String EXPPORTS_RESULT = "result";
+    public static final String EXPCONFIG_SOCKET_PROFILE = "socket_profile";
+    public static final String SOCKPROFILE_SENDBUFFER = "send_buffer";
+    public static final String SOCKPROFILE_RECEIVEBUFFER = "receive_buffer";
+    public static final String SOCKPROFILE_TRAFFICCLASS = "traffic_class";
+    public static final String SOCKPROFILE_LINGER = "linger";
+    public static final String SOCKPROFILE_KEEPALIVE = "keepalive";
+    public static final String SOCKPROFILE_TCPNODELAY = "tcp_nodelay";
+    public static final String SOCKPROFILE_CONNECTTIMEOUT = "connect_timeout";
     public static final String EXPCONFIG_FPS = "fps";
     public static final String EXPCONFIG_REWIND_SECONDS = "rewind_seconds";
     public static final String EXPCONFIG_MAX_REPLAYS = "max_replays";
+    public static final String EXPCONFIG_PACK_TRACES = "pack_traces";
+    public static final String EXPCONFIG_STEP_CACHE_BYTES = "step_cache_bytes";
+    public static final String EXPCONFIG_MISSED_FRAME_POLICY = "missed_frame_policy";
+    public static final String MISSED_FRAME_POLICY_SKIP = "skip";
+    public static final String MISSED_FRAME_POLICY_BURST = "burst";
+    public static final String EXPCONFIG_TOKEN_COUNT = "token_count";
+    public static final String EXPCONFIG_ADAPTIVE_TOKENS = "adaptive_tokens";
+    public static final String EXPCONFIG_MAX_TOKEN_COUNT = "max_token_count";
+    public static final String EXPCONFIG_TARGET_LATENCY = "target_latency";
+    public static final String EXPCONFIG_TRANSPORT = "transport";
+    public static final String TRANSPORT_THREADED = "threaded";
+    public static final String TRANSPORT_EVENT_LOOP = "event_loop";
+    public static final String EXPCONFIG_RESULT_PROTOCOL = "result_protocol";
+    public static final String RESULT_PROTOCOL_JSON = "json";
+    public static final String RESULT_PROTOCOL_BINARY = "binary";
+    public static final String EXPCONFIG_PERSISTENT_CONNECTIONS = "persistent_connections";
+    public static final String EXPCONFIG_VIDEO_TRANSPORT = "video_transport";
+    public static final String VIDEO_TRANSPORT_TCP = "tcp";
+    public static final String VIDEO_TRANSPORT_UDP = "udp";
+    public static final String EXPCONFIG_TOKEN_TIMEOUT = "token_timeout";
+    public static final String EXPCONFIG_STATS_ENCODING = "stats_encoding";
+    public static final String STATS_ENCODING_JSON = "json";
+    public static final String STATS_ENCODING_DEFLATE = "deflate";
+    public static final String STATS_ENCODING_COLUMNAR = "columnar";
 
     public static final String STEP_METADATA_INDEX = "index";
     public static final String STEP_METADATA_SIZE = "size";
@@ -44,6 +76,9 @@ public final class ControlConst {
 
     public final static int MSG_EXPERIMENT_FINISH = 0x000000b1;
 
+    // format version of the columnar stats encoding, see ControlClient.sendStats()
+    public final static int STATS_COLUMNAR_VERSION = 0x01;
+
     public final static int CMD_PUSH_CONFIG = 0x000000a1;
     public final static int CMD_PULL_STATS = 0x000000a2;
     public final static int CMD_START_EXP = 0x000000a3;
@@ -54,9 +89,13 @@ public final class ControlConst {
     public final static int CMD_SHUTDOWN = 0x000000af;
     public static final String STEP_PREFIX = "step_";
     public static final String STEP_SUFFIX = ".trace";
+    public static final String TRACE_ARCHIVE = "steps.pack";
+
+    public static final long DEFAULT_STEP_CACHE_BYTES = 0; // off, steps are read from storage
 
     public static final int DEFAULT_GOOD_LATENCY_MS = 600;
     public static final int DEFAULT_BAD_LATENCY_MS = 2700;
+    public static final int DEFAULT_MAX_TOKEN_COUNT = 16; // upper bound for adaptive token windows
     // server IP
      public static final String SERVER = "192.168.0.100";  // Cloudlet
     //public static final String SERVER = "130.237.43.83";  // Cloudlet
@@ -68,12 +107,20 @@ public final class ControlConst {
         public static final String FIELD_TASKNAME = "experiment_id";
         public static final String FIELD_PORTS = "ports";
         public static final String FIELD_RUNRESULTS = "run_results";
+        public static final String FIELD_STEPCACHE = "step_cache";
+        public static final String STEPCACHEFIELD_HITS = "hits";
+        public static final String STEPCACHEFIELD_MISSES = "misses";
+        public static final String STEPCACHEFIELD_EVICTIONS = "evictions";
+        public static final String STEPCACHEFIELD_BYTES = "bytes";
         public static final String FIELD_RUNBEGIN = "init";
         public static final String FIELD_RUNEND = "end";
         public static final String FIELD_RUNSUCCESS = "success";
         public static final String FIELD_RUNTIMESTAMPERROR = "timestamp_error";
         public static final String FIELD_RUNNTPOFFSET = "ntp_offset";
         public static final String FIELD_RUNFRAMELIST = "frames";
+        public static final String FIELD_RUNPUSHEDFRAMES = "pushed_frames";
+        public static final String FIELD_RUNREPLAYPASSES = "replay_passes";
+        public static final String FIELD_RUNREPLAYEDFRAMES = "replayed_frames";
         public static final String FRAMEFIELD_ID = "frame_id";
         public static final String FRAMEFIELD_SENT = "sent";
         public static final String FRAMEFIELD_RECV = "recv";
@@ -81,5 +128,71 @@ public final class ControlConst {
         public static final String FRAMEFIELD_SERVERSENT = "server_sent";
         public static final String FRAMEFIELD_SERVERRECV = "server_recv";
         public static final String FRAMEFIELD_STATEIDX = "state_index";
+        public static final String FRAMEFIELD_CAPTURED = "captured";
+
+        public static final String FIELD_RUNCAPTURETOSEND = "capture_to_send";
+        public static final String FIELD_RUNCAPTURETOFEEDBACK = "capture_to_feedback";
+        public static final String LATENCYFIELD_COUNT = "count";
+        public static final String LATENCYFIELD_MEAN = "mean";
+        public static final String LATENCYFIELD_STDDEV = "stddev";
+        public static final String LATENCYFIELD_MIN = "min";
+        public static final String LATENCYFIELD_MAX = "max";
+
+        public static final String FIELD_RUNFRAMETIMING = "frame_timing";
+        public static final String FRAMETIMINGFIELD_PERIOD = "nominal_period";
+        public static final String FRAMETIMINGFIELD_TICKS = "ticks";
+        public static final String FRAMETIMINGFIELD_SKIPPED = "skipped";
+        public static final String FRAMETIMINGFIELD_MEAN = "interval_mean";
+        public static final String FRAMETIMINGFIELD_JITTER = "interval_stddev";
+        public static final String FRAMETIMINGFIELD_MIN = "interval_min";
+        public static final String FRAMETIMINGFIELD_MAX = "interval_max";
+        public static final String FRAMETIMINGFIELD_LATENESSMEAN = "lateness_mean";
+        public static final String FRAMETIMINGFIELD_LATENESSMAX = "lateness_max";
+
+        public static final String FIELD_RUNTOKENWINDOW = "token_window";
+        public static final String TOKENFIELD_TIMESTAMP = "timestamp";
+        public static final String TOKENFIELD_WINDOW = "window";
+        public static final String TOKENFIELD_INFLIGHT = "in_flight";
+
+        public static final String FIELD_RUNCONNECTION = "connection";
+        public static final String CONNECTIONFIELD_SETUPTIME = "setup_time";
+        public static final String CONNECTIONFIELD_REUSED = "reused";
+        public static final String CONNECTIONFIELD_DISCARDED = "discarded_messages";
+
+        public static final String FIELD_RUNSOCKETS = "sockets"; // keyed like the ports
+
+        public static final String FIELD_RUNTOKENTIMEOUTS = "token_timeouts";
+        public static final String TOKENTIMEOUTFIELD_TIMEOUT = "timeout";
+        public static final String TOKENTIMEOUTFIELD_EXPIRED = "expired";
+        public static final String TOKENTIMEOUTFIELD_LATE = "late_results";
+
+        public static final String FIELD_RUNDATAGRAMS = "datagrams";
+        public static final String DATAGRAMFIELD_MESSAGES = "messages";
+        public static final String DATAGRAMFIELD_DATAGRAMS = "datagrams";
+        public static final String DATAGRAMFIELD_BYTES = "bytes";
+        public static final String DATAGRAMFIELD_ERRORS = "send_errors";
+
+        public static final String FIELD_RUNRECEIVED = "received";
+        public static final String RECEIVEDFIELD_MESSAGES = "messages";
+        public static final String RECEIVEDFIELD_BYTES = "bytes";
+        public static final String RECEIVEDFIELD_MAXSIZE = "max_message_size";
+
+        public static final String FIELD_RUNTOKENPOOL = "token_pool";
+        public static final String TOKENPOOLFIELD_ACQUIRED = "acquired";
+        public static final String TOKENPOOLFIELD_RETURNED = "returned";
+        public static final String TOKENPOOLFIELD_WAITS = "waits";
+        public static final String TOKENPOOLFIELD_WAITTIME = "wait_time";
+
+        public static final String FIELD_RUNWINDOWCHANGES = "window_changes";
+        public static final String WINDOWCHANGEFIELD_TIMESTAMP = "timestamp";
+        public static final String WINDOWCHANGEFIELD_WINDOW = "window";
+        public static final String WINDOWCHANGEFIELD_RTT = "rtt";
+
+        public static final String FIELD_RUNSTEPCHANGES = "step_changes";
+        public static final String STEPCHANGEFIELD_FROM = "from";
+        public static final String STEPCHANGEFIELD_TO = "to";
+        public static final String STEPCHANGEFIELD_TIMESTAMP = "timestamp";
+        public static final String STEPCHANGEFIELD_LATENCY = "latency";
+        public static final String STEPCHANGEFIELD_PREFETCHED = "prefetched";
     }
 }
@@ -20,6 +20,9 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import se.kth.molguin.edgedroid.network.control.ControlConst;
+import se.kth.molguin.edgedroid.network.control.experiment.run.StatsWriter;
+import se.kth.molguin.edgedroid.network.gabriel.TokenPool;
+import se.kth.molguin.edgedroid.network.task.FrameClock;
 
 public class Config {
     public final String experiment_id;
@@ -34,10 +37,24 @@ public class Config {
     public final int video_port;
     public final int control_port;
     public final int result_port;
+    public final SocketProfile socket_profile;
 
     public final int fps;
     public final int rewind_seconds;
     public final int max_replays;
+    public final boolean pack_traces;
+    public final long step_cache_bytes; // in-memory copies of steps across runs, 0 = no cache
+    public final FrameClock.MissedTickPolicy missed_frame_policy;
+    public final int token_count;
+    public final boolean adaptive_tokens; // AIMD window, starting at token_count
+    public final int max_token_count;
+    public final int target_latency;
+    public final boolean event_loop; // single-threaded Selector transport instead of blocking I/O
+    public final boolean binary_results; // fixed-layout results instead of JSON, see BinaryResultParser
+    public final boolean persistent_connections; // keep backend connections open across runs
+    public final boolean udp_video; // fragmented datagrams instead of the TCP video stream
+    public final int token_timeout; // ms after which tokens of unanswered frames are reclaimed, 0 = never
+    public final StatsWriter.Encoding stats_encoding;
 
     public Config(JSONObject json) throws JSONException {
         this.experiment_id = json.getString(ControlConst.EXPCONFIG_ID);
@@ -47,6 +64,104 @@ public class Config {
         this.fps = json.getInt(ControlConst.EXPCONFIG_FPS);
         this.rewind_seconds = json.getInt(ControlConst.EXPCONFIG_REWIND_SECONDS);
         this.max_replays = json.getInt(ControlConst.EXPCONFIG_MAX_REPLAYS);
+        this.pack_traces = json.optBoolean(ControlConst.EXPCONFIG_PACK_TRACES, false);
+        this.step_cache_bytes = json.optLong(ControlConst.EXPCONFIG_STEP_CACHE_BYTES,
+                ControlConst.DEFAULT_STEP_CACHE_BYTES);
+
+        final String policy = json.optString(ControlConst.EXPCONFIG_MISSED_FRAME_POLICY,
+                ControlConst.MISSED_FRAME_POLICY_SKIP);
+        switch (policy) {
+            case ControlConst.MISSED_FRAME_POLICY_SKIP:
+                this.missed_frame_policy = FrameClock.MissedTickPolicy.SKIP;
+                break;
+            case ControlConst.MISSED_FRAME_POLICY_BURST:
+                this.missed_frame_policy = FrameClock.MissedTickPolicy.BURST;
+                break;
+            default:
+                throw new JSONException("Unknown missed frame policy: " + policy);
+        }
+
+        this.token_count = json.optInt(ControlConst.EXPCONFIG_TOKEN_COUNT,
+                TokenPool.DEFAULT_MAX_TOKEN_COUNT);
+        if (this.token_count < 1)
+            throw new JSONException("Invalid token count: " + this.token_count);
+        this.adaptive_tokens = json.optBoolean(ControlConst.EXPCONFIG_ADAPTIVE_TOKENS, false);
+        this.max_token_count = json.optInt(ControlConst.EXPCONFIG_MAX_TOKEN_COUNT,
+                Math.max(ControlConst.DEFAULT_MAX_TOKEN_COUNT, this.token_count));
+        if (this.max_token_count < this.token_count)
+            throw new JSONException("Invalid max token count: " + this.max_token_count
+                    + " (token count is " + this.token_count + ")");
+        this.target_latency = json.optInt(ControlConst.EXPCONFIG_TARGET_LATENCY,
+                ControlConst.DEFAULT_GOOD_LATENCY_MS);
+        if (this.target_latency <= 0)
+            throw new JSONException("Invalid target latency: " + this.target_latency);
+
+        final String transport = json.optString(ControlConst.EXPCONFIG_TRANSPORT,
+                ControlConst.TRANSPORT_THREADED);
+        switch (transport) {
+            case ControlConst.TRANSPORT_THREADED:
+                this.event_loop = false;
+                break;
+            case ControlConst.TRANSPORT_EVENT_LOOP:
+                this.event_loop = true;
+                break;
+            default:
+                throw new JSONException("Unknown transport: " + transport);
+        }
+
+        // the backend is configured with the same experiment config, so both ends agree on this
+        final String result_protocol = json.optString(ControlConst.EXPCONFIG_RESULT_PROTOCOL,
+                ControlConst.RESULT_PROTOCOL_JSON);
+        switch (result_protocol) {
+            case ControlConst.RESULT_PROTOCOL_JSON:
+                this.binary_results = false;
+                break;
+            case ControlConst.RESULT_PROTOCOL_BINARY:
+                this.binary_results = true;
+                break;
+            default:
+                throw new JSONException("Unknown result protocol: " + result_protocol);
+        }
+        this.persistent_connections = json.optBoolean(ControlConst.EXPCONFIG_PERSISTENT_CONNECTIONS, false);
+
+        final String video_transport = json.optString(ControlConst.EXPCONFIG_VIDEO_TRANSPORT,
+                ControlConst.VIDEO_TRANSPORT_TCP);
+        switch (video_transport) {
+            case ControlConst.VIDEO_TRANSPORT_TCP:
+                this.udp_video = false;
+                break;
+            case ControlConst.VIDEO_TRANSPORT_UDP:
+                this.udp_video = true;
+                break;
+            default:
+                throw new JSONException("Unknown video transport: " + video_transport);
+        }
+        if (this.udp_video && this.event_loop)
+            throw new JSONException("UDP video is only supported with the threaded transport.");
+
+        // lost datagrams never get a result, so their tokens have to be reclaimed
+        this.token_timeout = json.optInt(ControlConst.EXPCONFIG_TOKEN_TIMEOUT,
+                this.udp_video ? ControlConst.DEFAULT_BAD_LATENCY_MS : 0);
+        if (this.token_timeout < 0 || (this.udp_video && this.token_timeout == 0))
+            throw new JSONException("Invalid token timeout: " + this.token_timeout);
+
+        // older Control servers don't set this, and expect plain JSON
+        final String stats_encoding = json.optString(ControlConst.EXPCONFIG_STATS_ENCODING,
+                ControlConst.STATS_ENCODING_JSON);
+        switch (stats_encoding) {
+            case ControlConst.STATS_ENCODING_JSON:
+                this.stats_encoding = StatsWriter.Encoding.JSON;
+                break;
+            case ControlConst.STATS_ENCODING_DEFLATE:
+                this.stats_encoding = StatsWriter.Encoding.DEFLATE;
+                break;
+            case ControlConst.STATS_ENCODING_COLUMNAR:
+                this.stats_encoding = StatsWriter.Encoding.COLUMNAR;
+                break;
+            default:
+                throw new JSONException("Unknown stats encoding: " + stats_encoding);
+        }
+
         // this.trace_url = json.getString(ControlConst.EXPCONFIG_TRACE);
         this.ntp_host = json.getString(ControlConst.EXPCONFIG_NTP);
 
@@ -54,6 +169,7 @@ public class Config {
         this.video_port = ports.getInt(ControlConst.EXPPORTS_VIDEO);
         this.control_port = ports.getInt(ControlConst.EXPPORTS_CONTROL);
         this.result_port = ports.getInt(ControlConst.EXPPORTS_RESULT);
+        this.socket_profile = new SocketProfile(json.optJSONObject(ControlConst.EXPCONFIG_SOCKET_PROFILE));
 
         this.server = ControlConst.SERVER; // TODO: For now
     }
@@ -0,0 +1,147 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.kth.molguin.edgedroid.network.control.experiment;
+
+import android.support.annotation.NonNull;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.DatagramSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+import se.kth.molguin.edgedroid.network.control.ControlConst;
+
+/**
+ * Socket options for the connections to the backend, so they can be tuned per experiment without
+ * rebuilding the app.
+ * <p>
+ * Options which are left out of the config keep the OS defaults, except for TCP_NODELAY, which is
+ * enabled unless explicitly disabled. Since the OS is free to adjust most of these values (Linux
+ * doubles buffer sizes, for instance), the values actually in effect on a connected socket can be
+ * read back with {@link #effective(Socket, int)}.
+ */
+public class SocketProfile {
+
+    public static final int OS_DEFAULT = -1;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 250; // ms
+
+    public final int send_buffer; // bytes
+    public final int receive_buffer; // bytes
+    public final int traffic_class; // IP TOS byte, DSCP in its upper six bits
+    public final int linger; // seconds, OS_DEFAULT leaves SO_LINGER disabled
+    public final boolean keepalive;
+    public final boolean tcp_nodelay;
+    public final int connect_timeout; // ms
+
+    /**
+     * Parses a socket profile from the experiment config.
+     *
+     * @param json Socket profile section of the config, or null to use the defaults.
+     */
+    public SocketProfile(JSONObject json) throws JSONException {
+        if (json == null)
+            json = new JSONObject();
+
+        this.send_buffer = json.optInt(ControlConst.SOCKPROFILE_SENDBUFFER, OS_DEFAULT);
+        this.receive_buffer = json.optInt(ControlConst.SOCKPROFILE_RECEIVEBUFFER, OS_DEFAULT);
+        this.traffic_class = json.optInt(ControlConst.SOCKPROFILE_TRAFFICCLASS, OS_DEFAULT);
+        this.linger = json.optInt(ControlConst.SOCKPROFILE_LINGER, OS_DEFAULT);
+        this.keepalive = json.optBoolean(ControlConst.SOCKPROFILE_KEEPALIVE, false);
+        this.tcp_nodelay = json.optBoolean(ControlConst.SOCKPROFILE_TCPNODELAY, true);
+        this.connect_timeout = json.optInt(ControlConst.SOCKPROFILE_CONNECTTIMEOUT,
+                DEFAULT_CONNECT_TIMEOUT);
+
+        if (this.send_buffer == 0 || this.send_buffer < OS_DEFAULT)
+            throw new JSONException("Invalid send buffer size: " + this.send_buffer);
+        if (this.receive_buffer == 0 || this.receive_buffer < OS_DEFAULT)
+            throw new JSONException("Invalid receive buffer size: " + this.receive_buffer);
+        if (this.traffic_class < OS_DEFAULT || this.traffic_class > 255)
+            throw new JSONException("Invalid traffic class: " + this.traffic_class);
+        if (this.linger < OS_DEFAULT)
+            throw new JSONException("Invalid linger time: " + this.linger);
+        if (this.connect_timeout < 1)
+            throw new JSONException("Invalid connect timeout: " + this.connect_timeout);
+    }
+
+    private SocketProfile(int send_buffer, int receive_buffer, int traffic_class, int linger,
+                          boolean keepalive, boolean tcp_nodelay, int connect_timeout) {
+        this.send_buffer = send_buffer;
+        this.receive_buffer = receive_buffer;
+        this.traffic_class = traffic_class;
+        this.linger = linger;
+        this.keepalive = keepalive;
+        this.tcp_nodelay = tcp_nodelay;
+        this.connect_timeout = connect_timeout;
+    }
+
+    /**
+     * Applies this profile to a socket. Needs to be called before connecting, as buffer sizes
+     * above 64 KiB only take effect if set before the TCP handshake.
+     *
+     * @param socket Unconnected socket.
+     */
+    public void apply(@NonNull Socket socket) throws SocketException {
+        socket.setTcpNoDelay(this.tcp_nodelay);
+        socket.setKeepAlive(this.keepalive);
+        socket.setSoLinger(this.linger != OS_DEFAULT, Math.max(this.linger, 0));
+        if (this.send_buffer != OS_DEFAULT)
+            socket.setSendBufferSize(this.send_buffer);
+        if (this.receive_buffer != OS_DEFAULT)
+            socket.setReceiveBufferSize(this.receive_buffer);
+        if (this.traffic_class != OS_DEFAULT)
+            socket.setTrafficClass(this.traffic_class);
+    }
+
+    /**
+     * Applies the options of this profile which make sense for datagrams to a datagram socket.
+     */
+    public void apply(@NonNull DatagramSocket socket) throws SocketException {
+        if (this.send_buffer != OS_DEFAULT)
+            socket.setSendBufferSize(this.send_buffer);
+        if (this.receive_buffer != OS_DEFAULT)
+            socket.setReceiveBufferSize(this.receive_buffer);
+        if (this.traffic_class != OS_DEFAULT)
+            socket.setTrafficClass(this.traffic_class);
+    }
+
+    /**
+     * Reads back the options in effect on a socket.
+     *
+     * @param socket          Connected socket.
+     * @param connect_timeout Timeout the socket was connected with, in milliseconds.
+     * @return A profile holding the effective values.
+     */
+    public static SocketProfile effective(@NonNull Socket socket, int connect_timeout) throws SocketException {
+        return new SocketProfile(socket.getSendBufferSize(), socket.getReceiveBufferSize(),
+                socket.getTrafficClass(), socket.getSoLinger(), socket.getKeepAlive(),
+                socket.getTcpNoDelay(), connect_timeout);
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        JSONObject repr = new JSONObject();
+        repr.put(ControlConst.SOCKPROFILE_SENDBUFFER, this.send_buffer);
+        repr.put(ControlConst.SOCKPROFILE_RECEIVEBUFFER, this.receive_buffer);
+        repr.put(ControlConst.SOCKPROFILE_TRAFFICCLASS, this.traffic_class);
+        repr.put(ControlConst.SOCKPROFILE_LINGER, this.linger);
+        repr.put(ControlConst.SOCKPROFILE_KEEPALIVE, this.keepalive);
+        repr.put(ControlConst.SOCKPROFILE_TCPNODELAY, this.tcp_nodelay);
+        repr.put(ControlConst.SOCKPROFILE_CONNECTTIMEOUT, this.connect_timeout);
+
+        return repr;
+    }
+}
@@ -18,35 +18,67 @@ package se.kth.molguin.edgedroid.network.control.experiment;
 
 import android.support.annotation.NonNull;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
+import se.kth.molguin.edgedroid.network.gabriel.ProtocolConst;
+import se.kth.molguin.edgedroid.network.gabriel.ReceiveBuffer;
+import se.kth.molguin.edgedroid.network.gabriel.VideoHeaderEncoder;
+import se.kth.molguin.edgedroid.network.gabriel.VideoStreamWriter;
+
+/**
+ * Connections to the backend.
+ * <p>
+ * All sockets are backed by blocking {@link SocketChannel}s, so they can be used both through
+ * their streams and through their channels.
+ * <p>
+ * Connections may be kept open across consecutive runs. In that case, {@link #reset()} has to be
+ * called before every run but the first, to make sure the backend has dropped all state from the
+ * previous run and that no stale results are left on the result channel.
+ */
 public class Sockets implements AutoCloseable {
-    private final static int DEFAULT_SOCKET_TIMEOUT = 250;
+    private final static int RESET_TIMEOUT = 1000;
 
     public final Socket video;
     public final Socket result;
     public final Socket control;
+    public final DatagramChannel video_datagram; // null unless video goes over UDP
+
+    private final SocketProfile profile;
+    private int reset_count;
+    private volatile boolean invalid; // set if a run left the connections in an unknown state
+
+    // setup stats for the upcoming run
+    private double setup_time; // ms
+    private boolean reused;
+    private int discarded_messages;
 
     public Sockets(@NonNull Config config) throws ExecutionException, InterruptedException {
+        final long start = System.nanoTime();
+        this.profile = config.socket_profile;
 
         ExecutorService execs = Executors.newCachedThreadPool();
 
         Future<Socket> video_future = execs.submit(
-                getConnectCallable(config.server, config.video_port, DEFAULT_SOCKET_TIMEOUT));
+                getConnectCallable(config.server, config.video_port, this.profile));
 
         Future<Socket> result_future = execs.submit(
-                getConnectCallable(config.server, config.result_port, DEFAULT_SOCKET_TIMEOUT));
+                getConnectCallable(config.server, config.result_port, this.profile));
 
         Future<Socket> control_future = execs.submit(
-                getConnectCallable(config.server, config.control_port, DEFAULT_SOCKET_TIMEOUT));
+                getConnectCallable(config.server, config.control_port, this.profile));
 
         // TODO: Fix exceptions to more descriptive ones
 
@@ -54,7 +86,145 @@ public class Sockets implements AutoCloseable {
         this.result = result_future.get();
         this.control = control_future.get();
 
+        if (config.udp_video) {
+            final String addr = config.server;
+            final int port = config.video_port;
+            final SocketProfile profile = this.profile;
+            this.video_datagram = execs.submit(new Callable<DatagramChannel>() {
+                @Override
+                public DatagramChannel call() throws IOException {
+                    final DatagramChannel channel = DatagramChannel.open();
+                    profile.apply(channel.socket());
+                    return channel.connect(new InetSocketAddress(addr, port));
+                }
+            }).get();
+        } else
+            this.video_datagram = null;
+
         execs.shutdownNow();
+
+        this.reset_count = 0;
+        this.invalid = false;
+        this.setup_time = (System.nanoTime() - start) / 1000000.0;
+        this.reused = false;
+        this.discarded_messages = 0;
+    }
+
+    /**
+     * Prepares the connections for a new run through the reset handshake: a reset marker is sent
+     * in-band on the video channel, and all results up to the backend's acknowledgement are
+     * discarded.
+     *
+     * @return True if the connections are ready for a new run. False if they're unusable or the
+     * backend didn't acknowledge the reset in time, in which case they should be closed.
+     */
+    public boolean reset() {
+        if (!this.isReusable())
+            return false;
+
+        final long start = System.nanoTime();
+        final int nonce = ++this.reset_count;
+        try {
+            // the event loop transport leaves the channels in non-blocking mode
+            this.video.getChannel().configureBlocking(true);
+            this.result.getChannel().configureBlocking(true);
+            this.control.getChannel().configureBlocking(true);
+
+            final VideoHeaderEncoder header = new VideoHeaderEncoder();
+            header.begin().put(VideoHeaderEncoder.RESET, nonce).end();
+            new VideoStreamWriter(this.video.getChannel()).write(
+                    header.getBuffer(), header.getLength(), ByteBuffer.allocate(0));
+
+            // don't close this stream, that would close the socket
+            final DataInputStream result_in = new DataInputStream(this.result.getInputStream());
+            final ReceiveBuffer buffer = new ReceiveBuffer();
+            int discarded = 0;
+            this.result.setSoTimeout(RESET_TIMEOUT);
+            try {
+                while (true) {
+                    final int len = result_in.readInt();
+                    final byte[] msg = buffer.prepare(len);
+                    result_in.readFully(msg, 0, len);
+
+                    if (len == ProtocolConst.RESET_ACK_LENGTH) {
+                        final ByteBuffer ack = ByteBuffer.wrap(msg, 0, len);
+                        if (ack.getInt() == ProtocolConst.RESET_ACK && ack.getInt() == nonce)
+                            break;
+                    }
+                    discarded++; // late result from the previous run
+                }
+            } finally {
+                this.result.setSoTimeout(0);
+            }
+
+            this.setup_time = (System.nanoTime() - start) / 1000000.0;
+            this.reused = true;
+            this.discarded_messages = discarded;
+            return true;
+        } catch (IOException e) {
+            // also thrown on timeout, i.e. if the backend doesn't support resets or is stuck
+            this.invalid = true;
+            return false;
+        }
+    }
+
+    /**
+     * @return Number of resets so far, truncated to 16 bits. Used to tell datagrams of different
+     * runs apart, see {@link se.kth.molguin.edgedroid.network.gabriel.DatagramVideoWriter}.
+     */
+    public int getEpoch() {
+        return this.reset_count & 0xFFFF;
+    }
+
+    /**
+     * Marks the connections as unusable for further runs, e.g. because a message was only
+     * partially written or read.
+     */
+    public void invalidate() {
+        this.invalid = true;
+    }
+
+    /**
+     * @return Whether the connections may be kept open for another run.
+     */
+    public boolean isReusable() {
+        return !this.invalid && isOpen(this.video) && isOpen(this.result) && isOpen(this.control)
+                && (this.video_datagram == null || this.video_datagram.isOpen());
+    }
+
+    private static boolean isOpen(Socket socket) {
+        return socket.isConnected() && !socket.isClosed() && socket.getChannel().isOpen()
+                && !socket.isInputShutdown() && !socket.isOutputShutdown();
+    }
+
+    /**
+     * @param socket One of the backend connections.
+     * @return The socket options in effect on the connection.
+     */
+    public SocketProfile getEffectiveProfile(@NonNull Socket socket) throws SocketException {
+        return SocketProfile.effective(socket, this.profile.connect_timeout);
+    }
+
+    /**
+     * @return Time it took to connect to the backend, or to reset the connections if they were
+     * reused, in milliseconds.
+     */
+    public double getSetupTime() {
+        return this.setup_time;
+    }
+
+    /**
+     * @return Whether the connections were kept open from a previous run.
+     */
+    public boolean isReused() {
+        return this.reused;
+    }
+
+    /**
+     * @return Number of late results from the previous run discarded during the last reset.
+     */
+    public int getDiscardedMessages() {
+        return this.discarded_messages;
     }
 
     @Override
@@ -62,27 +232,29 @@ public class Sockets implements AutoCloseable {
         this.video.close();
         this.result.close();
         this.control.close();
+        if (this.video_datagram != null)
+            this.video_datagram.close();
     }
 
     private static Callable<Socket> getConnectCallable(final String addr,
                                                        final int port,
-                                                       final int timeout_ms) {
+                                                       final SocketProfile profile) {
         return new Callable<Socket>() {
             @Override
             public Socket call() throws IOException {
-                return Sockets.prepareSocket(addr, port, timeout_ms);
+                return Sockets.prepareSocket(addr, port, profile);
             }
         };
     }
 
-    private static Socket prepareSocket(String addr, int port, int timeout_ms) throws IOException {
+    private static Socket prepareSocket(String addr, int port, SocketProfile profile) throws IOException {
         boolean connected = false;
         Socket socket = null;
         while (!connected) {
             try {
-                socket = new Socket();
-                socket.setTcpNoDelay(true);
-                socket.connect(new InetSocketAddress(addr, port), timeout_ms);
+                socket = SocketChannel.open().socket();
+                profile.apply(socket);
+                socket.connect(new InetSocketAddress(addr, port), profile.connect_timeout);
                 connected = true;
             } catch (SocketTimeoutException ignored) {
             }
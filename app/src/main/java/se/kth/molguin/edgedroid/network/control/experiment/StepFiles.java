@@ -0,0 +1,55 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.kth.molguin.edgedroid.network.control.experiment;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.IOException;
+
+import se.kth.molguin.edgedroid.network.control.ControlConst;
+import se.kth.molguin.edgedroid.network.task.StepTrace;
+import se.kth.molguin.edgedroid.network.task.TraceSource;
+
+/**
+ * Provides step traces from the individual step_N.trace files in the app's private storage.
+ */
+public class StepFiles implements TraceSource {
+
+    private final Context appContext;
+
+    public StepFiles(@NonNull Context appContext) {
+        this.appContext = appContext;
+    }
+
+    /**
+     * @param index 0-based index of the step.
+     * @return The trace file for the step.
+     */
+    public File getFile(int index) {
+        return this.appContext.getFileStreamPath(
+                ControlConst.STEP_PREFIX + (index + 1) + ControlConst.STEP_SUFFIX);
+    }
+
+    @Override
+    public StepTrace getStep(int index) throws IOException, JSONException {
+        return StepTrace.map(this.getFile(index));
+    }
+}
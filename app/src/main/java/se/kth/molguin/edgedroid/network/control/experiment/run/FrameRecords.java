@@ -0,0 +1,174 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.kth.molguin.edgedroid.network.control.experiment.run;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import se.kth.molguin.edgedroid.network.control.ControlConst;
+
+/**
+ * Records of completed frames, stored column-wise in growable primitive arrays.
+ * <p>
+ * A long run completes tens of thousands of frames; storing them as one object each (plus list
+ * nodes and boxed timestamps) puts a steady load on the GC while the experiment is running.
+ * Here, recording a frame only writes into the arrays, which double in size whenever they fill
+ * up, and objects are only created when the records are serialized at the end of the run.
+ * <p>
+ * Not thread-safe.
+ */
+class FrameRecords {
+
+    private static final byte FLAG_FEEDBACK = 0x01;
+
+    // id, state index, flags and five timestamps
+    private static final int COLUMN_RECORD_SIZE = 4 + 4 + 1 + 5 * 8;
+
+    private int size;
+    private int[] ids;
+    private int[] state_indices;
+    private byte[] flags;
+    private double[] captured;
+    private double[] sent;
+    private double[] recv;
+    private double[] server_recv;
+    private double[] server_sent;
+
+    FrameRecords(int initial_capacity) {
+        this.size = 0;
+        this.ids = new int[initial_capacity];
+        this.state_indices = new int[initial_capacity];
+        this.flags = new byte[initial_capacity];
+        this.captured = new double[initial_capacity];
+        this.sent = new double[initial_capacity];
+        this.recv = new double[initial_capacity];
+        this.server_recv = new double[initial_capacity];
+        this.server_sent = new double[initial_capacity];
+    }
+
+    void add(int id, double captured, double sent, double recv, boolean feedback,
+             double server_recv, double server_sent, int state_index) {
+        if (this.size == this.ids.length)
+            this.grow();
+
+        final int i = this.size++;
+        this.ids[i] = id;
+        this.state_indices[i] = state_index;
+        this.flags[i] = feedback ? FLAG_FEEDBACK : 0;
+        this.captured[i] = captured;
+        this.sent[i] = sent;
+        this.recv[i] = recv;
+        this.server_recv[i] = server_recv;
+        this.server_sent[i] = server_sent;
+    }
+
+    private void grow() {
+        final int capacity = Math.max(16, this.ids.length * 2);
+        this.ids = Arrays.copyOf(this.ids, capacity);
+        this.state_indices = Arrays.copyOf(this.state_indices, capacity);
+        this.flags = Arrays.copyOf(this.flags, capacity);
+        this.captured = Arrays.copyOf(this.captured, capacity);
+        this.sent = Arrays.copyOf(this.sent, capacity);
+        this.recv = Arrays.copyOf(this.recv, capacity);
+        this.server_recv = Arrays.copyOf(this.server_recv, capacity);
+        this.server_sent = Arrays.copyOf(this.server_sent, capacity);
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * @param i Index of the record, in order of completion.
+     * @return The record, in the same format as always used in the run stats.
+     */
+    JSONObject toJSON(int i) throws JSONException {
+        JSONObject repr = new JSONObject();
+        repr.put(ControlConst.Stats.FRAMEFIELD_ID, this.ids[i]);
+        repr.put(ControlConst.Stats.FRAMEFIELD_CAPTURED, this.captured[i]);
+        repr.put(ControlConst.Stats.FRAMEFIELD_SENT, this.sent[i]);
+        repr.put(ControlConst.Stats.FRAMEFIELD_RECV, this.recv[i]);
+        repr.put(ControlConst.Stats.FRAMEFIELD_FEEDBACK, (this.flags[i] & FLAG_FEEDBACK) != 0);
+        repr.put(ControlConst.Stats.FRAMEFIELD_SERVERRECV, this.server_recv[i]);
+        repr.put(ControlConst.Stats.FRAMEFIELD_SERVERSENT, this.server_sent[i]);
+        repr.put(ControlConst.Stats.FRAMEFIELD_STATEIDX, this.state_indices[i]);
+
+        return repr;
+    }
+
+    /**
+     * Streams a record, with the same fields as {@link #toJSON(int)}, without building any
+     * intermediate objects.
+     */
+    void write(int i, StatsWriter writer) throws IOException, JSONException {
+        writer.beginObject();
+        writer.name(ControlConst.Stats.FRAMEFIELD_ID).value(this.ids[i]);
+        writer.name(ControlConst.Stats.FRAMEFIELD_CAPTURED).value(this.captured[i]);
+        writer.name(ControlConst.Stats.FRAMEFIELD_SENT).value(this.sent[i]);
+        writer.name(ControlConst.Stats.FRAMEFIELD_RECV).value(this.recv[i]);
+        writer.name(ControlConst.Stats.FRAMEFIELD_FEEDBACK).value((this.flags[i] & FLAG_FEEDBACK) != 0);
+        writer.name(ControlConst.Stats.FRAMEFIELD_SERVERRECV).value(this.server_recv[i]);
+        writer.name(ControlConst.Stats.FRAMEFIELD_SERVERSENT).value(this.server_sent[i]);
+        writer.name(ControlConst.Stats.FRAMEFIELD_STATEIDX).value(this.state_indices[i]);
+        writer.endObject();
+    }
+
+    /**
+     * @return Size in bytes of {@link #writeColumns(DataOutputStream, int)} for a number of records.
+     */
+    static long getColumnsSize(int count) {
+        return 4 + (long) count * COLUMN_RECORD_SIZE;
+    }
+
+    /**
+     * Writes the first records column by column, big-endian, instead of repeating every field
+     * name for every frame:
+     * <pre>
+     *     int32    number of records N
+     *     int32[N] frame IDs
+     *     f64[N]   capture timestamps
+     *     f64[N]   send timestamps
+     *     f64[N]   receive timestamps
+     *     f64[N]   server receive timestamps
+     *     f64[N]   server send timestamps
+     *     int32[N] state indices
+     *     u8[N]    flags, bit 0 set for feedback
+     * </pre>
+     * Columns of similar values also compress far better than interleaved records.
+     */
+    void writeColumns(DataOutputStream out, int count) throws IOException {
+        out.writeInt(count);
+        for (int i = 0; i < count; i++)
+            out.writeInt(this.ids[i]);
+        writeColumn(out, this.captured, count);
+        writeColumn(out, this.sent, count);
+        writeColumn(out, this.recv, count);
+        writeColumn(out, this.server_recv, count);
+        writeColumn(out, this.server_sent, count);
+        for (int i = 0; i < count; i++)
+            out.writeInt(this.state_indices[i]);
+        out.write(this.flags, 0, count);
+    }
+
+    private static void writeColumn(DataOutputStream out, double[] column, int count) throws IOException {
+        for (int i = 0; i < count; i++)
+            out.writeDouble(column[i]);
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.kth.molguin.edgedroid.network.control.experiment.run;
+
+import java.util.Arrays;
+
+/**
+ * Send and capture times of the frames waiting for a result, by frame ID.
+ * <p>
+ * Open-addressing hash map with linear probing over primitive arrays, so that adding and
+ * removing frames neither boxes nor allocates (except for the occasional resize). Removal uses
+ * backward-shift deletion, so there are no tombstones and lookups never degrade over a long run.
+ * Entries are addressed by slot, so that reading and removing a frame doesn't need any
+ * intermediate objects:
+ * <pre>
+ *     final int slot = in_flight.find(frame_id);
+ *     if (slot >= 0) {
+ *         sent = in_flight.getSent(slot);
+ *         in_flight.removeAt(slot);
+ *     }
+ * </pre>
+ * Not thread-safe.
+ */
+class InFlightFrames {
+
+    private static final int EMPTY = Integer.MIN_VALUE; // frame IDs are never negative
+
+    private int[] keys;
+    private double[] sent;
+    private double[] captured;
+    private int mask;
+    private int size;
+
+    InFlightFrames(int expected_size) {
+        int capacity = 2;
+        while (capacity < expected_size * 2)
+            capacity <<= 1;
+        this.allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new int[capacity];
+        this.sent = new double[capacity];
+        this.captured = new double[capacity];
+        this.mask = capacity - 1;
+        this.size = 0;
+        Arrays.fill(this.keys, EMPTY);
+    }
+
+    private int idealSlot(int key) {
+        final int h = key * 0x9E3779B9; // Fibonacci hashing, spreads consecutive IDs
+        return (h ^ (h >>> 16)) & this.mask;
+    }
+
+    /**
+     * Adds a frame, replacing any previous entry for the same ID.
+     */
+    void put(int frame_id, double sent, double captured) {
+        if (frame_id == EMPTY)
+            throw new IllegalArgumentException("Invalid frame ID: " + frame_id);
+
+        int slot = this.idealSlot(frame_id);
+        while (this.keys[slot] != EMPTY && this.keys[slot] != frame_id)
+            slot = (slot + 1) & this.mask;
+
+        if (this.keys[slot] == EMPTY) {
+            this.keys[slot] = frame_id;
+            this.size++;
+        }
+        this.sent[slot] = sent;
+        this.captured[slot] = captured;
+
+        // keep the load factor at or below 1/2
+        if (this.size * 2 > this.keys.length)
+            this.resize(this.keys.length * 2);
+    }
+
+    /**
+     * @return The slot holding the frame, or -1 if it isn't in flight. Slots are only valid until
+     * the next modification of the map.
+     */
+    int find(int frame_id) {
+        int slot = this.idealSlot(frame_id);
+        while (this.keys[slot] != EMPTY) {
+            if (this.keys[slot] == frame_id)
+                return slot;
+            slot = (slot + 1) & this.mask;
+        }
+        return -1;
+    }
+
+    double getSent(int slot) {
+        return this.sent[slot];
+    }
+
+    double getCaptured(int slot) {
+        return this.captured[slot];
+    }
+
+    /**
+     * Removes the frame in a slot, as returned by {@link #find(int)}.
+     */
+    void removeAt(int slot) {
+        int hole = slot;
+        int i = (hole + 1) & this.mask;
+        while (this.keys[i] != EMPTY) {
+            // shift entries back into the hole, unless that would move them before their ideal slot
+            final int ideal = this.idealSlot(this.keys[i]);
+            if (((i - ideal) & this.mask) >= ((i - hole) & this.mask)) {
+                this.keys[hole] = this.keys[i];
+                this.sent[hole] = this.sent[i];
+                this.captured[hole] = this.captured[i];
+                hole = i;
+            }
+            i = (i + 1) & this.mask;
+        }
+        this.keys[hole] = EMPTY;
+        this.size--;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    private void resize(int capacity) {
+        final int[] old_keys = this.keys;
+        final double[] old_sent = this.sent;
+        final double[] old_captured = this.captured;
+
+        this.allocate(capacity);
+        for (int i = 0; i < old_keys.length; i++)
+            if (old_keys[i] != EMPTY)
+                this.put(old_keys[i], old_sent[i], old_captured[i]);
+    }
+}
@@ -17,20 +17,25 @@
 package se.kth.molguin.edgedroid.network.control.experiment.run;
 
 import android.arch.lifecycle.MutableLiveData;
-import android.content.Context;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.util.Locale;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -38,56 +43,100 @@ import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import se.kth.molguin.edgedroid.IntegratedAsyncLog;
-import se.kth.molguin.edgedroid.network.control.ControlConst;
 import se.kth.molguin.edgedroid.network.control.experiment.Config;
+import se.kth.molguin.edgedroid.network.control.experiment.SocketProfile;
 import se.kth.molguin.edgedroid.network.control.experiment.Sockets;
+import se.kth.molguin.edgedroid.network.gabriel.AimdTokenWindow;
+import se.kth.molguin.edgedroid.network.gabriel.BinaryResultParser;
+import se.kth.molguin.edgedroid.network.gabriel.DatagramVideoWriter;
+import se.kth.molguin.edgedroid.network.gabriel.MessageReader;
 import se.kth.molguin.edgedroid.network.gabriel.ProtocolConst;
+import se.kth.molguin.edgedroid.network.gabriel.ReceiveBuffer;
+import se.kth.molguin.edgedroid.network.gabriel.ResultParser;
 import se.kth.molguin.edgedroid.network.gabriel.TokenPool;
+import se.kth.molguin.edgedroid.network.gabriel.VideoHeaderEncoder;
+import se.kth.molguin.edgedroid.network.gabriel.VideoStreamWriter;
+import se.kth.molguin.edgedroid.network.gabriel.VideoWriter;
+import se.kth.molguin.edgedroid.network.task.FramePool;
+import se.kth.molguin.edgedroid.network.task.FrameScheduler;
+import se.kth.molguin.edgedroid.network.task.FrameTiming;
+import se.kth.molguin.edgedroid.network.task.StepTrace;
 import se.kth.molguin.edgedroid.network.task.SynchronizedBuffer;
 import se.kth.molguin.edgedroid.network.task.TaskStep;
+import se.kth.molguin.edgedroid.network.task.TraceSource;
+import se.kth.molguin.edgedroid.network.task.VideoFrame;
 import se.kth.molguin.edgedroid.synchronization.INTPSync;
 
 public class Run {
     private static final String LOG_TAG = "ExperimentRun";
+    private static final int PREFETCH_DEPTH = 2; // number of upcoming steps to keep ready
+    private static final int CONTROL_SINK_SIZE = 256;
     private final IntegratedAsyncLog log;
 
-    private final SynchronizedBuffer<byte[]> frame_buffer;
+    private final SynchronizedBuffer<VideoFrame> frame_buffer;
+    private final FramePool frame_pool;
     private final AtomicBoolean running_flag;
     private final AtomicBoolean task_success;
     private final Config config;
     private final TokenPool tokenPool;
+    private final AimdTokenWindow token_window; // null unless the window is adaptive
     private final RunStats stats;
-    private final Context appContext;
+    private final FrameTiming frame_timing;
+    private final FrameScheduler frame_scheduler;
+    private final TraceSource traces;
+    private final INTPSync ntp;
 
-    private final MutableLiveData<byte[]> sentframe_feed;
-    private final MutableLiveData<byte[]> rtframe_feed;
+    private final MutableLiveData<ByteBuffer> sentframe_feed;
+    private final MutableLiveData<ByteBuffer> rtframe_feed;
 
     // mutable state:
     private final AtomicInteger frame_counter;
     private final AtomicInteger current_step_idx;
 
+    // frames still waiting for a result, with the time they were sent, by frame ID
+    // null unless tokens of unanswered frames time out
+    private final ConcurrentMap<Integer, Long> outstanding_frames;
+    private final long token_timeout_ns;
+    private final AtomicLong expired_tokens;
+    private final AtomicLong late_results;
+
     private final Lock step_lock;
     // locking primitives to notify end of stream!
     private final ExecutorService execs;
 
+    // upcoming steps are loaded in the background so that changing steps is just a swap
+    private final ExecutorService prefetch_exec;
+    private final Map<Integer, Future<TaskStep>> prefetched_steps;
+
     @NonNull // step should never be null
     private TaskStep current_step;
 
+    // only touched by the stream thread
+    private final VideoHeaderEncoder header_encoder;
+    // only touched by the listener thread
+    private final ReceiveBuffer receive_buffer;
+    private final ResultParser result_parser;
+    private final BinaryResultParser binary_parser; // null unless results are binary
+
     public Run(@NonNull final Config config,
                @NonNull final INTPSync ntp,
-               @NonNull final Context appContext,
+               @NonNull final TraceSource traces,
+               @NonNull final FrameScheduler frame_scheduler,
                @NonNull final IntegratedAsyncLog log,
-               @NonNull final MutableLiveData<byte[]> rtframe_feed,
-               @NonNull final MutableLiveData<byte[]> sentframe_feed,
+               @NonNull final MutableLiveData<ByteBuffer> rtframe_feed,
+               @NonNull final MutableLiveData<ByteBuffer> sentframe_feed,
                @NonNull final MutableLiveData<Double> rtt_feed)
-            throws InterruptedException, FileNotFoundException {
+            throws InterruptedException, IOException, JSONException {
 
         this.log = log;
-        this.appContext = appContext;
+        this.traces = traces;
+        this.ntp = ntp;
+        this.frame_scheduler = frame_scheduler;
         this.config = config;
 
         this.sentframe_feed = sentframe_feed;
@@ -95,86 +144,331 @@ public class Run {
 
         this.log.i(LOG_TAG, "Initiating new Experiment Run");
         this.execs = Executors.newFixedThreadPool(2); // Magic number since it shouldn't ever need to change anyway
-        this.stats = new RunStats(ntp, rtt_feed);
-        this.tokenPool = new TokenPool(this.log);
+        this.prefetch_exec = Executors.newSingleThreadExecutor();
+        this.prefetched_steps = new HashMap<>();
+        this.frame_timing = new FrameTiming(config.fps);
+        this.stats = new RunStats(ntp, rtt_feed, this.frame_timing);
+        this.tokenPool = new TokenPool(config.token_count);
+        this.token_window = config.adaptive_tokens ?
+                new AimdTokenWindow(this.tokenPool, config.max_token_count, config.target_latency) : null;
 
         this.frame_buffer = new SynchronizedBuffer<>();
+        this.frame_pool = new FramePool();
         this.running_flag = new AtomicBoolean(false);
         this.task_success = new AtomicBoolean(false);
         this.frame_counter = new AtomicInteger(0);
         this.current_step_idx = new AtomicInteger(0);
 
+        this.outstanding_frames = config.token_timeout > 0 ?
+                new ConcurrentHashMap<Integer, Long>() : null;
+        this.token_timeout_ns = TimeUnit.MILLISECONDS.toNanos(config.token_timeout);
+        this.expired_tokens = new AtomicLong(0);
+        this.late_results = new AtomicLong(0);
+
         this.step_lock = new ReentrantLock();
+        this.header_encoder = new VideoHeaderEncoder();
+        this.receive_buffer = new ReceiveBuffer();
+        this.result_parser = new ResultParser();
+        this.binary_parser = config.binary_results ? new BinaryResultParser() : null;
 
-        this.current_step = new TaskStep(this.getDataInputStreamForStep(this.current_step_idx.get()),
-                this.frame_buffer, this.rtframe_feed, this.log,
+        this.current_step = this.loadStep(this.current_step_idx.get());
+        this.prefetchSteps(this.current_step_idx.get());
+    }
+
+    private TaskStep loadStep(int index) throws IOException, JSONException {
+        final StepTrace trace = this.traces.getStep(index);
+        trace.warmUp();
+        return new TaskStep(trace, this.frame_buffer, this.frame_pool, this.rtframe_feed, this.log,
+                this.ntp, this.frame_scheduler, this.frame_timing, this.config.missed_frame_policy,
                 this.config.fps, this.config.rewind_seconds, this.config.max_replays);
     }
 
-    private DataInputStream getDataInputStreamForStep(int index) throws FileNotFoundException {
-        return new DataInputStream(this.appContext.openFileInput(
-                ControlConst.STEP_PREFIX + (index + 1) + ControlConst.STEP_SUFFIX
-        ));
+    /**
+     * Starts loading the steps following the current one in the background, and discards
+     * prefetched steps which are no longer upcoming.
+     * Only called from the listener thread (and the constructor).
+     *
+     * @param current_idx Index of the step currently being played.
+     */
+    private void prefetchSteps(int current_idx) {
+        final int last_idx = Math.min(current_idx + PREFETCH_DEPTH, this.config.num_steps - 1);
+
+        final Iterator<Map.Entry<Integer, Future<TaskStep>>> it =
+                this.prefetched_steps.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Integer, Future<TaskStep>> entry = it.next();
+            if (entry.getKey() <= current_idx || entry.getKey() > last_idx) {
+                discardPrefetchedStep(entry.getValue());
+                it.remove();
+            }
+        }
+
+        for (int idx = current_idx + 1; idx <= last_idx; idx++) {
+            if (this.prefetched_steps.containsKey(idx))
+                continue;
+
+            final int step_idx = idx;
+            this.prefetched_steps.put(idx, this.prefetch_exec.submit(new Callable<TaskStep>() {
+                @Override
+                public TaskStep call() throws Exception {
+                    final TaskStep step = loadStep(step_idx);
+                    if (Thread.interrupted()) {
+                        // discarded while loading, nobody is going to pick this step up
+                        step.stop();
+                        throw new InterruptedException();
+                    }
+                    return step;
+                }
+            }));
+        }
     }
 
-    public JSONObject getRunStats() throws RunStats.RunStatsException, JSONException {
-        return this.stats.toJSON();
+    private static void discardPrefetchedStep(Future<TaskStep> step) {
+        if (step.cancel(true) || !step.isDone())
+            return;
+        try {
+            step.get().stop();
+        } catch (InterruptedException | ExecutionException ignored) {
+        }
+    }
+
+    /**
+     * Obtains a step, either from the prefetched steps or by loading it on the calling thread.
+     *
+     * @param index Index of the step.
+     * @return The loaded step.
+     */
+    private TaskStep obtainStep(int index) throws IOException, JSONException, InterruptedException {
+        final Future<TaskStep> prefetched = this.prefetched_steps.remove(index);
+        if (prefetched == null)
+            return this.loadStep(index);
+
+        try {
+            return prefetched.get();
+        } catch (ExecutionException e) {
+            this.log.w(LOG_TAG, "Prefetching step " + index + " failed, loading it again.", e);
+            return this.loadStep(index);
+        }
+    }
+
+    private void discardPrefetchedSteps() {
+        for (Future<TaskStep> step : this.prefetched_steps.values())
+            discardPrefetchedStep(step);
+        this.prefetched_steps.clear();
+    }
+
+    public RunStats.Snapshot getRunStats() throws RunStats.RunStatsException, JSONException {
+        return this.stats.snapshot();
     }
 
     public boolean succeeded() {
         return this.stats.succeeded();
     }
 
-    public void executeAndWait() throws ExecutionException {
+    /**
+     * Executes the run over the given backend connections, which stay open afterwards.
+     * If the run leaves the connections in an unknown state, they are invalidated.
+     *
+     * @param sockets Connections to the backend.
+     */
+    public void executeAndWait(@NonNull Sockets sockets) throws ExecutionException {
 
-        try (
-                final Sockets sockets = new Sockets(this.config);
-                final DataInputStream dataIn = new DataInputStream(sockets.result.getInputStream());
-                final DataOutputStream dataOut = new DataOutputStream(sockets.video.getOutputStream());
-        ) {
+        try {
 
             this.running_flag.set(true);
             this.stats.init();
+            this.stats.registerConnection(sockets.getSetupTime(), sockets.isReused(),
+                    sockets.getDiscardedMessages());
+            this.stats.registerSocketProfiles(sockets.getEffectiveProfile(sockets.video),
+                    sockets.getEffectiveProfile(sockets.result),
+                    sockets.getEffectiveProfile(sockets.control));
 
-            final Future streamTask = this.execs.submit(new Runnable() {
-                @Override
-                public void run() {
-                    stream(dataOut);
-                }
-            });
-
-            final Future listenTask = this.execs.submit(new Runnable() {
-                @Override
-                public void run() {
-                    listen(dataIn);
-                }
-            });
+            if (this.config.event_loop)
+                this.runEventLoop(sockets);
+            else
+                this.runThreaded(sockets);
 
-
-            // wait for task completion
-            // listener thread will exit when it gets the final feedback from the backend
-            // after that, we just interrupt the stream thread
-            listenTask.get();
-            streamTask.cancel(true);
-            this.execs.awaitTermination(100, TimeUnit.MILLISECONDS);
+            this.current_step.stop();
+            this.registerStepPlayback(this.current_step);
+            this.stats.registerTokenPool(this.tokenPool.getAcquiredCount(),
+                    this.tokenPool.getReturnedCount(), this.tokenPool.getWaitCount(),
+                    this.tokenPool.getWaitTime());
+            // the listener is done by now, so its counters are safe to read
+            this.stats.registerReceivedMessages(this.receive_buffer.getMessageCount(),
+                    this.receive_buffer.getBytesReceived(), this.receive_buffer.getLargestMessage());
+            if (this.outstanding_frames != null)
+                this.stats.registerTokenTimeouts(this.config.token_timeout,
+                        this.expired_tokens.get(), this.late_results.get());
 
             this.stats.finish(task_success.get());
         } catch (InterruptedException e) {
             // clean shutdown
         } catch (IOException e) {
             // socket error?
-            this.log.e(LOG_TAG, "Error communicating with backend!!, e");
+            this.log.e(LOG_TAG, "Error communicating with backend!!", e);
+            sockets.invalidate();
         } catch (RunStats.RunStatsException e) {
             this.log.e(LOG_TAG, "Error collecting stats!", e);
         } finally {
             this.execs.shutdownNow();
+            this.prefetch_exec.shutdownNow();
+            this.discardPrefetchedSteps();
         }
 
         final String status_msg = task_success.get() ? "Success" : "Failure";
         this.log.i(LOG_TAG, "Stream finished. Status: " + status_msg);
     }
 
-    private void stream(DataOutputStream dataOut) {
+    /**
+     * Streams frames and listens for results on two separate threads, using blocking I/O.
+     */
+    private void runThreaded(final Sockets sockets)
+            throws IOException, InterruptedException, ExecutionException, RunStats.RunStatsException {
+        // the input stream is not closed here, as that would close the socket
+        final DataInputStream dataIn = new DataInputStream(sockets.result.getInputStream());
+
+        // frames are written straight to the video channel (see VideoStreamWriter), or
+        // fragmented into datagrams
+        final DatagramVideoWriter datagramOut = sockets.video_datagram != null ?
+                new DatagramVideoWriter(sockets.video_datagram, sockets.getEpoch()) : null;
+        final VideoWriter videoOut = datagramOut != null ?
+                datagramOut : new VideoStreamWriter(sockets.video.getChannel());
+
+        final Future streamTask = this.execs.submit(new Runnable() {
+            @Override
+            public void run() {
+                stream(videoOut, sockets);
+            }
+        });
+
+        final Future listenTask = this.execs.submit(new Runnable() {
+            @Override
+            public void run() {
+                listen(dataIn, sockets);
+            }
+        });
+
+
+        // wait for task completion
+        // listener thread will exit when it gets the final feedback from the backend
+        // after that, we just interrupt the stream thread
+        listenTask.get();
+        streamTask.cancel(true);
+        this.execs.awaitTermination(100, TimeUnit.MILLISECONDS);
+
+        if (datagramOut != null)
+            this.stats.registerDatagrams(datagramOut.getMessagesSent(), datagramOut.getDatagramsSent(),
+                    datagramOut.getBytesSent(), datagramOut.getSendErrors());
+    }
+
+    /**
+     * Streams frames and listens for results on the calling thread, multiplexing the video,
+     * result and control channels with a single Selector.
+     */
+    private void runEventLoop(Sockets sockets) throws IOException, InterruptedException {
+        final SocketChannel video = sockets.video.getChannel();
+        final SocketChannel result = sockets.result.getChannel();
+        final SocketChannel control = sockets.control.getChannel();
+
+        try (final Selector selector = Selector.open()) {
+            video.configureBlocking(false);
+            result.configureBlocking(false);
+            control.configureBlocking(false);
+
+            final SelectionKey video_key = video.register(selector, 0);
+            final SelectionKey result_key = result.register(selector, SelectionKey.OP_READ);
+            final SelectionKey control_key = control.register(selector, SelectionKey.OP_READ);
+
+            final VideoStreamWriter videoOut = new VideoStreamWriter(video);
+            final MessageReader resultIn = new MessageReader(result, this.receive_buffer);
+            final ByteBuffer control_sink = ByteBuffer.allocate(CONTROL_SINK_SIZE);
+
+            // frames are pushed from the frame scheduler, so it needs to wake us up
+            this.frame_buffer.setPushListener(new Runnable() {
+                @Override
+                public void run() {
+                    selector.wakeup();
+                }
+            });
+
+            VideoFrame sending = null; // frame currently being written out, if any
+            try {
+                log.i(LOG_TAG, "Starting event loop...");
+                this.current_step.start();
+
+                while (this.running_flag.get()) {
+                    if (Thread.interrupted())
+                        throw new InterruptedException();
+
+                    // reclaim tokens of timed out frames before trying to get one
+                    final long select_timeout = this.outstanding_frames != null ?
+                            Math.max(1, (this.expireFrames() + 999999) / 1000000) : 0;
+
+                    // only we consume frames and tokens, so if there's a frame now, it'll still be
+                    // there after getting a token
+                    if (sending == null && this.frame_buffer.hasNewData() && this.tokenPool.tryGetToken()) {
+                        this.registerTokenWindow();
+                        sending = this.frame_buffer.poll();
+                        sending.setId(this.frame_counter.incrementAndGet());
+                        this.frameDispatched(sending);
+                        this.header_encoder.encodeFrameHeader(sending.getId());
+                        videoOut.begin(this.header_encoder.getBuffer(), this.header_encoder.getLength(),
+                                sending.getData());
+
+                        if (videoOut.writePending()) {
+                            this.frameSent(sending);
+                            sending.release();
+                            sending = null;
+                        } else
+                            video_key.interestOps(SelectionKey.OP_WRITE); // socket buffer is full
+                    }
+
+                    selector.select(select_timeout);
+
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        if (!key.isValid())
+                            continue;
+
+                        if (key == video_key && key.isWritable()) {
+                            if (videoOut.writePending()) {
+                                this.frameSent(sending);
+                                sending.release();
+                                sending = null;
+                                video_key.interestOps(0);
+                            }
+                        } else if (key == result_key && key.isReadable()) {
+                            while (this.running_flag.get() && resultIn.read())
+                                this.handleResult(this.receive_buffer.getArray(),
+                                        this.receive_buffer.getLength());
+                        } else if (key == control_key && key.isReadable()) {
+                            // nothing is expected on the control channel, just watch for it closing
+                            control_sink.clear();
+                            if (control.read(control_sink) < 0) {
+                                this.log.w(LOG_TAG, "Control socket closed by backend.");
+                                control_key.cancel();
+                                sockets.invalidate();
+                            }
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (RunStats.RunStatsException e) {
+                this.log.e(LOG_TAG, "Error collecting stats!", e);
+            } finally {
+                this.frame_buffer.setPushListener(null);
+                this.current_step.stop();
+                if (sending != null) {
+                    // frame was only partially written out
+                    sending.release();
+                    sockets.invalidate();
+                }
+                if (!resultIn.isIdle())
+                    sockets.invalidate();
+            }
+        }
+    }
+
+    private void stream(VideoWriter videoOut, Sockets sockets) {
         try {
             if (!running_flag.get())
                 return;
@@ -185,21 +479,28 @@ public class Run {
             while (running_flag.get()) {
 
                 // get a token
-                tokenPool.getToken();
+                this.acquireToken();
+                this.registerTokenWindow();
                 // got a token
                 // now get a frame to send
-                final byte[] frame_data = frame_buffer.pop();
-                final int current_frame_id = frame_counter.incrementAndGet();
-
-                sendFrame(dataOut, current_frame_id, frame_data);
-
-                this.stats.registerSentFrame(current_frame_id);
-                this.sentframe_feed.postValue(frame_data);
+                final VideoFrame frame = frame_buffer.pop();
+                try {
+                    final int current_frame_id = frame_counter.incrementAndGet();
+                    frame.setId(current_frame_id);
+                    frameDispatched(frame);
+
+                    sendFrame(videoOut, frame);
+                    frameSent(frame);
+                } finally {
+                    // done with the frame, return it to the pool
+                    frame.release();
+                }
             }
 
         } catch (InterruptedException ignored) {
         } catch (IOException e) {
             this.log.e(LOG_TAG, "Exception in VideoOutput", e);
+            sockets.invalidate();
         } catch (RunStats.RunStatsException e) {
             this.log.e(LOG_TAG, "Error collecting stats!", e);
         } finally {
@@ -207,32 +508,71 @@ public class Run {
         }
     }
 
-    private static void sendFrame(DataOutputStream dataOut, int id, byte[] data) throws IOException {
-        byte[] header = String.format(Locale.ENGLISH, ProtocolConst.VIDEO_HEADER_FMT, id).getBytes();
-
-        try (// use auxiliary output streams to write everything out at once
-             ByteArrayOutputStream baos = new ByteArrayOutputStream();
-             DataOutputStream daos = new DataOutputStream(baos)
-        ) {
-            daos.writeInt(header.length);
-            daos.write(header);
-            daos.writeInt(data.length);
-            daos.write(data);
-
-            byte[] out_data = baos.toByteArray();
-            dataOut.write(out_data); // send!
-            dataOut.flush();
+    private void acquireToken() throws InterruptedException, RunStats.RunStatsException {
+        if (this.outstanding_frames == null) {
+            this.tokenPool.getToken();
+            return;
+        }
+
+        // frames which never get a result would hold on to their tokens forever, so reclaim
+        // those while waiting
+        long timeout = this.expireFrames();
+        while (!this.tokenPool.getToken(timeout))
+            timeout = this.expireFrames();
+    }
+
+    /**
+     * Reclaims the tokens of frames which have been waiting longer than the token timeout for
+     * their results, and considers those frames lost.
+     *
+     * @return Time until the next frame times out, in nanoseconds.
+     */
+    private long expireFrames() throws RunStats.RunStatsException {
+        final long now = System.nanoTime();
+        long next = this.token_timeout_ns;
+        for (Map.Entry<Integer, Long> entry : this.outstanding_frames.entrySet()) {
+            final long age = now - entry.getValue();
+            if (age < this.token_timeout_ns)
+                next = Math.min(next, this.token_timeout_ns - age);
+            else if (this.outstanding_frames.remove(entry.getKey(), entry.getValue())) {
+                // the result might still show up, but we're not waiting for it anymore
+                this.expired_tokens.incrementAndGet();
+                this.tokenPool.putToken();
+                this.registerTokenWindow();
+            }
         }
+        return next;
+    }
+
+    /**
+     * Called right before a frame is written out. Needs to happen before the write, as its result
+     * may come back before the write returns.
+     */
+    private void frameDispatched(VideoFrame frame) {
+        if (this.outstanding_frames != null)
+            this.outstanding_frames.put(frame.getId(), System.nanoTime());
+    }
+
+    private void sendFrame(VideoWriter videoOut, VideoFrame frame) throws IOException {
+        this.header_encoder.encodeFrameHeader(frame.getId());
+        videoOut.write(this.header_encoder.getBuffer(), this.header_encoder.getLength(),
+                frame.getData()); // send!
+    }
+
+    private void frameSent(VideoFrame frame) throws RunStats.RunStatsException {
+        this.stats.registerSentFrame(frame.getId(), frame.getTimestamp());
+        this.sentframe_feed.postValue(frame.getFrameData());
     }
 
-    private void listen(DataInputStream dataIn) {
+    private void listen(DataInputStream dataIn, Sockets sockets) {
         try {
             while (running_flag.get()) {
 
-                // get incoming message size:
+                // get incoming message size, and read the message into the reusable buffer
+                // (throws if the size is beyond what we're willing to allocate)
                 final int len = dataIn.readInt();
-                final byte[] msg_b = new byte[len];
-                dataIn.readFully(msg_b);
+                final byte[] msg_b = this.receive_buffer.prepare(len);
+                dataIn.readFully(msg_b, 0, len);
 
                 // read the message into a string
 //                        int readSize = 0;
@@ -244,44 +584,7 @@ public class Run {
 //                            readSize += ret;
 //                        }
 
-                final String msg_s = new String(msg_b, "UTF-8");
-
-                try {
-                    // parse the string into a JSON
-                    final JSONObject msg = new JSONObject(msg_s);
-                    final String status = msg.getString(ProtocolConst.HEADER_MESSAGE_STATUS);
-                    final JSONObject result = new JSONObject(msg.getString(ProtocolConst.HEADER_MESSAGE_RESULT));
-
-                    final boolean feedback = status.equals(ProtocolConst.STATUS_SUCCESS);
-                    final int state_index = feedback ? result.getInt(ProtocolConst.HEADER_MESSAGE_STATE_IDX) : -1;
-                    final long frameID = msg.getLong(ProtocolConst.HEADER_MESSAGE_FRAME_ID);
-
-
-                    if (feedback && state_index >= 0) {
-                        // differentiate different types of messages
-                        this.changeStep(state_index);
-                        //TODO: Do something in case of error (state index < 0) ¯\_(ツ)_/¯
-                    }
-
-                    // we got a valid message, give back a token
-                    tokenPool.putToken();
-
-                    try {
-                        final double server_sent = result.getDouble(ProtocolConst.HEADER_MESSAGE_SERVER_SEND);
-                        final double server_recv = result.getDouble(ProtocolConst.HEADER_MESSAGE_SERVER_RECV);
-
-                        stats.registerReceivedFrame((int) frameID, feedback, server_recv, server_sent, state_index);
-                    } catch (JSONException e) {
-                        log.submitLog(Log.WARN, LOG_TAG, "Server send/recv timestamps not found in incoming message.", false);
-                        stats.registerReceivedFrame((int) frameID, feedback, state_index);
-                    }
-
-
-                } catch (JSONException e) {
-                    log.w(LOG_TAG, "Received message is not valid Gabriel message.", e);
-                } catch (RunStats.RunStatsException e) {
-                    this.log.e(LOG_TAG, "Error collecting stats!", e);
-                }
+                this.handleResult(msg_b, len);
             }
         } catch (InterruptedException ignored) {
             // shutdown smoothly
@@ -291,10 +594,115 @@ public class Run {
         } catch (IOException e) {
             // Socket closed...
             this.log.e(LOG_TAG, "Input socket prematurely closed!", e);
+            sockets.invalidate();
         }
     }
 
-    private void changeStep(int new_step_idx) {
+    /**
+     * Processes a single result message from the backend.
+     *
+     * @param msg_b Buffer holding the raw message, without its length prefix.
+     * @param len   Length of the message.
+     */
+    private void handleResult(byte[] msg_b, int len) throws InterruptedException, UnsupportedEncodingException {
+        try {
+            if (this.binary_parser != null) {
+                if (this.binary_parser.parse(msg_b, 0, len)) {
+                    this.processResult((int) this.binary_parser.getFrameId(),
+                            this.binary_parser.isSuccess(), this.binary_parser.getStateIndex(),
+                            this.binary_parser.hasServerTimestamps(),
+                            this.binary_parser.getServerRecv(), this.binary_parser.getServerSent());
+                    return;
+                }
+
+                // backend doesn't speak the binary protocol, try JSON instead
+                log.submitLog(Log.WARN, LOG_TAG, "Received result is not a binary result message.", false);
+            }
+
+            if (this.result_parser.parse(msg_b, 0, len)) {
+                // fast path, no intermediate Strings or JSONObjects
+                this.processResult((int) this.result_parser.getFrameId(),
+                        this.result_parser.isSuccess(), this.result_parser.getStateIndex(),
+                        this.result_parser.hasServerTimestamps(),
+                        this.result_parser.getServerRecv(), this.result_parser.getServerSent());
+                return;
+            }
+
+            // unexpected message layout, fall back to full JSON parsing
+            final String msg_s = new String(msg_b, 0, len, "UTF-8");
+
+            // parse the string into a JSON
+            final JSONObject msg = new JSONObject(msg_s);
+            final String status = msg.getString(ProtocolConst.HEADER_MESSAGE_STATUS);
+            final JSONObject result = new JSONObject(msg.getString(ProtocolConst.HEADER_MESSAGE_RESULT));
+
+            final boolean feedback = status.equals(ProtocolConst.STATUS_SUCCESS);
+            final int state_index = feedback ? result.getInt(ProtocolConst.HEADER_MESSAGE_STATE_IDX) : -1;
+            final long frameID = msg.getLong(ProtocolConst.HEADER_MESSAGE_FRAME_ID);
+
+            boolean has_timestamps;
+            double server_sent = -1;
+            double server_recv = -1;
+            try {
+                server_sent = result.getDouble(ProtocolConst.HEADER_MESSAGE_SERVER_SEND);
+                server_recv = result.getDouble(ProtocolConst.HEADER_MESSAGE_SERVER_RECV);
+                has_timestamps = true;
+            } catch (JSONException e) {
+                has_timestamps = false;
+            }
+
+            this.processResult((int) frameID, feedback, state_index, has_timestamps, server_recv, server_sent);
+        } catch (JSONException e) {
+            log.w(LOG_TAG, "Received message is not valid Gabriel message.", e);
+        } catch (RunStats.RunStatsException e) {
+            this.log.e(LOG_TAG, "Error collecting stats!", e);
+        }
+    }
+
+    private void processResult(int frame_id, boolean feedback, int state_index, boolean has_timestamps,
+                               double server_recv, double server_sent)
+            throws InterruptedException, RunStats.RunStatsException {
+
+        if (feedback && state_index >= 0) {
+            // differentiate different types of messages
+            this.changeStep(state_index);
+            //TODO: Do something in case of error (state index < 0) ¯\_(ツ)_/¯
+        }
+
+        // we got a valid message, give back a token
+        // unless it was already reclaimed because the result took too long
+        if (this.outstanding_frames == null || this.outstanding_frames.remove(frame_id) != null) {
+            tokenPool.putToken();
+            this.registerTokenWindow();
+        } else
+            this.late_results.incrementAndGet();
+
+        if (has_timestamps)
+            stats.registerReceivedFrame(frame_id, feedback, server_recv, server_sent, state_index);
+        else {
+            log.submitLog(Log.WARN, LOG_TAG, "Server send/recv timestamps not found in incoming message.", false);
+            stats.registerReceivedFrame(frame_id, feedback, state_index);
+        }
+
+        if (this.token_window != null) {
+            // adapt the token window to the latest RTT measurements
+            final double rtt = this.stats.getRollingRTT();
+            final int new_window = this.token_window.update(rtt);
+            if (new_window > 0)
+                this.stats.registerWindowChange(new_window, rtt);
+        }
+    }
+
+    private void registerTokenWindow() throws RunStats.RunStatsException {
+        this.stats.registerTokenWindow(this.tokenPool.getWindow(), this.tokenPool.getInFlight());
+    }
+
+    private void registerStepPlayback(TaskStep step) throws RunStats.RunStatsException {
+        this.stats.registerStepPlayback(
+                step.getPushedFrames(), step.getReplayPasses(), step.getReplayedFrames());
+    }
+
+    private void changeStep(int new_step_idx) throws InterruptedException, RunStats.RunStatsException {
         // change step, set appropiate flags
 
         if (new_step_idx >= this.config.num_steps) {
@@ -305,18 +713,22 @@ public class Run {
             this.current_step.stop();
         } else if (this.current_step_idx.get() != new_step_idx) {
             // need to change step
+            final long change_start = System.nanoTime();
+            final int prev_step_idx = this.current_step_idx.get();
+            // only counts as prefetched if it's ready, otherwise we still block on the load
+            final Future<TaskStep> pending = this.prefetched_steps.get(new_step_idx);
+            final boolean prefetched = pending != null && pending.isDone();
 
-            this.log.i(LOG_TAG, "Moving to step " + new_step_idx + " from step " + this.current_step_idx.get());
+            this.log.i(LOG_TAG, "Moving to step " + new_step_idx + " from step " + prev_step_idx);
 
             this.current_step.stop();
+            this.registerStepPlayback(this.current_step);
 
             this.step_lock.lock();
             try {
-                this.current_step = new TaskStep(this.getDataInputStreamForStep(new_step_idx),
-                        this.frame_buffer, this.rtframe_feed, this.log, this.config.fps,
-                        this.config.rewind_seconds, this.config.max_replays);
-            } catch (FileNotFoundException e) {
-                this.log.e(LOG_TAG, "Could not find find trace file for step " + new_step_idx + "!!");
+                this.current_step = this.obtainStep(new_step_idx);
+            } catch (IOException | JSONException e) {
+                this.log.e(LOG_TAG, "Could not load trace file for step " + new_step_idx + "!!", e);
                 this.log.e(LOG_TAG, "FATAL ERROR (Should never happen!!)");
                 this.running_flag.set(false);
                 return;
@@ -328,6 +740,11 @@ public class Run {
             if (this.running_flag.get())
                 this.current_step.start();
 
+            final double change_latency = (System.nanoTime() - change_start) / 1000000.0;
+            this.stats.registerStepChange(prev_step_idx, new_step_idx, change_latency, prefetched);
+
+            // get the next steps ready in the background
+            this.prefetchSteps(new_step_idx);
         }
 
     }
@@ -21,34 +21,56 @@ import android.arch.lifecycle.MutableLiveData;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.apache.commons.math3.stat.descriptive.SynchronizedDescriptiveStatistics;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import se.kth.molguin.edgedroid.network.control.ControlConst;
+import se.kth.molguin.edgedroid.network.control.experiment.SocketProfile;
+import se.kth.molguin.edgedroid.network.task.FrameTiming;
 import se.kth.molguin.edgedroid.synchronization.INTPSync;
 import se.kth.molguin.edgedroid.utils.AtomicDouble;
 
 public class RunStats {
     private static final String LOG_TAG = "RunStats";
     private static final int STAT_WINDOW_SZ = 15;
-    private static final int DEFAULT_INIT_MAP_SIZE = 5;
+    private static final int DEFAULT_INFLIGHT_SIZE = 16;
+    private static final int DEFAULT_FRAME_CAPACITY = 1024;
 
     private final Lock lock;
 
-    private final List<Frame> frames;
-    private final ConcurrentHashMap<Integer, Double> outgoing_timestamps;
+    private final Object frame_lock; // guards frames and in_flight
+    private final FrameRecords frames;
+    private final List<StepChange> step_changes;
+    private final TokenWindowRecords token_window; // guarded by itself
+    private final List<WindowChange> window_changes;
+    private final InFlightFrames in_flight;
+    private final LatencyStats capture_to_send;
+    private final LatencyStats capture_to_feedback;
     private SynchronizedDescriptiveStatistics rtt;
 
+    private final AtomicLong pushed_frames;
+    private final AtomicLong replay_passes;
+    private final AtomicLong replayed_frames;
+    private final TokenPoolStats token_pool;
+    private final ReceivedStats received;
+    private final ConnectionStats connection;
+    private final SocketStats sockets;
+    private final TokenTimeoutStats token_timeouts; // only reported if tokens time out
+    private final DatagramStats datagrams; // only reported if video goes over UDP
+
     private final AtomicBoolean success;
     private final AtomicDouble init;
     private final AtomicDouble finish;
@@ -56,19 +78,38 @@ public class RunStats {
     private final MutableLiveData<Double> rttfeed;
 
     private final INTPSync ntp;
+    private final FrameTiming frame_timing;
 
-    public RunStats(@NonNull INTPSync ntpSyncer, @NonNull final MutableLiveData<Double> rttfeed) {
+    public RunStats(@NonNull INTPSync ntpSyncer, @NonNull final MutableLiveData<Double> rttfeed,
+                    @NonNull FrameTiming frame_timing) {
         this.init = new AtomicDouble(-1);
         this.finish = new AtomicDouble(-1);
         this.success = new AtomicBoolean(false);
+        this.pushed_frames = new AtomicLong(0);
+        this.replay_passes = new AtomicLong(0);
+        this.replayed_frames = new AtomicLong(0);
+        this.token_pool = new TokenPoolStats();
+        this.received = new ReceivedStats();
+        this.connection = new ConnectionStats();
+        this.sockets = new SocketStats();
+        this.token_timeouts = new TokenTimeoutStats();
+        this.datagrams = new DatagramStats();
         this.rttfeed = rttfeed;
         this.lock = new ReentrantLock();
 
-        // initial size of 5 is ok since we'll constantly be removing frames as we get back confirmations
-        this.outgoing_timestamps = new ConcurrentHashMap<>(DEFAULT_INIT_MAP_SIZE);
-        this.frames = Collections.synchronizedList(new LinkedList<Frame>());
+        // frames are removed from the in-flight map as soon as we get back their results, so it
+        // only ever holds a handful of entries (plus any frames whose results were lost)
+        this.frame_lock = new Object();
+        this.in_flight = new InFlightFrames(DEFAULT_INFLIGHT_SIZE);
+        this.capture_to_send = new LatencyStats();
+        this.capture_to_feedback = new LatencyStats();
+        this.frames = new FrameRecords(DEFAULT_FRAME_CAPACITY);
+        this.step_changes = Collections.synchronizedList(new LinkedList<StepChange>());
+        this.token_window = new TokenWindowRecords(2 * DEFAULT_FRAME_CAPACITY); // two samples per frame
+        this.window_changes = Collections.synchronizedList(new LinkedList<WindowChange>());
         this.rtt = new SynchronizedDescriptiveStatistics(RunStats.STAT_WINDOW_SZ);
         this.ntp = ntpSyncer;
+        this.frame_timing = frame_timing;
     }
 
     public void init() {
@@ -93,9 +134,19 @@ public class RunStats {
             throw new RunStatsException("Not initialized!");
     }
 
-    public void registerSentFrame(int frame_id) throws RunStatsException {
+    /**
+     * @param frame_id          ID of the sent frame.
+     * @param capture_timestamp Emulated capture time of the frame.
+     */
+    public void registerSentFrame(int frame_id, double capture_timestamp) throws RunStatsException {
         this.checkInitialized();
-        this.outgoing_timestamps.put(frame_id, this.ntp.currentTimeMillis());
+        final double out_time = this.ntp.currentTimeMillis();
+        synchronized (this.frame_lock) {
+            this.in_flight.put(frame_id, out_time, capture_timestamp);
+        }
+
+        // age of the frame by the time it got a token and was sent out
+        this.capture_to_send.addValue(out_time - capture_timestamp);
     }
 
     public void registerReceivedFrame(int frame_id, boolean feedback, int state_index) throws RunStatsException {
@@ -104,13 +155,31 @@ public class RunStats {
 
     public void registerReceivedFrame(int frame_id, boolean feedback, double server_recv, double server_sent, int state_index) throws RunStatsException {
         this.checkInitialized();
-        double in_time = this.ntp.currentTimeMillis();
-        Double out_time = this.outgoing_timestamps.get(frame_id);
+        final double in_time = this.ntp.currentTimeMillis();
+        final boolean found;
+        final double out_time;
+        final double captured;
+
+        synchronized (this.frame_lock) {
+            final int slot = this.in_flight.find(frame_id);
+            found = slot >= 0;
+            if (found) {
+                out_time = this.in_flight.getSent(slot);
+                captured = this.in_flight.getCaptured(slot);
+                this.in_flight.removeAt(slot);
+                this.frames.add(frame_id, captured, out_time, in_time,
+                        feedback, server_recv, server_sent, state_index);
+            } else {
+                out_time = -1;
+                captured = -1;
+            }
+        }
 
-        if (out_time != null) {
-            Frame f = new Frame(frame_id, out_time, in_time, feedback, server_recv, server_sent, state_index);
-            this.frames.add(f);
-            this.rtt.addValue(f.getRTT());
+        if (found) {
+            this.rtt.addValue(in_time - out_time);
+
+            // true end-to-end latency, from emulated capture to feedback on the device
+            this.capture_to_feedback.addValue(in_time - captured);
 
             this.rttfeed.postValue(this.rtt.getMean());
         } else
@@ -118,39 +187,209 @@ public class RunStats {
                     + frame_id + " but couldn't find it in the list of sent frames!");
     }
 
+    public void registerStepChange(int from_step, int to_step, double latency, boolean prefetched) throws RunStatsException {
+        this.checkInitialized();
+        this.step_changes.add(new StepChange(from_step, to_step, this.ntp.currentTimeMillis(), latency, prefetched));
+    }
+
+    /**
+     * Registers the playback counters of a step once it has been played.
+     *
+     * @param pushed_frames   Total frames pushed by the step.
+     * @param replay_passes   Number of times the step looped over its replay window.
+     * @param replayed_frames Number of frames replayed by the step.
+     */
+    public void registerStepPlayback(int pushed_frames, int replay_passes, int replayed_frames) throws RunStatsException {
+        this.checkInitialized();
+        this.pushed_frames.addAndGet(pushed_frames);
+        this.replay_passes.addAndGet(replay_passes);
+        this.replayed_frames.addAndGet(replayed_frames);
+    }
+
+    /**
+     * Records the occupancy of the token window, every time a token is taken or returned.
+     *
+     * @param window    Current size of the token window.
+     * @param in_flight Number of tokens currently held by in-flight frames.
+     */
+    public void registerTokenWindow(int window, int in_flight) throws RunStatsException {
+        this.checkInitialized();
+        final double timestamp = this.ntp.currentTimeMillis();
+        synchronized (this.token_window) {
+            this.token_window.add(timestamp, window, in_flight);
+        }
+    }
+
+    /**
+     * Records a change in the size of an adaptive token window.
+     *
+     * @param window New size of the window.
+     * @param rtt    Rolling RTT which triggered the change.
+     */
+    public void registerWindowChange(int window, double rtt) throws RunStatsException {
+        this.checkInitialized();
+        this.window_changes.add(new WindowChange(this.ntp.currentTimeMillis(), window, rtt));
+    }
+
+    /**
+     * Records the token pool counters at the end of a run.
+     *
+     * @param acquired  Tokens handed out.
+     * @param returned  Tokens returned.
+     * @param waits     Number of times the stream had to wait for a token.
+     * @param wait_time Total time spent waiting for tokens, in milliseconds.
+     */
+    public void registerTokenPool(long acquired, long returned, long waits, double wait_time) throws RunStatsException {
+        this.checkInitialized();
+        this.token_pool.set(acquired, returned, waits, wait_time);
+    }
+
+    /**
+     * Records how the backend connections were set up for this run.
+     *
+     * @param setup_time         Time spent connecting, or resetting reused connections, in ms.
+     * @param reused             Whether the connections were kept open from a previous run.
+     * @param discarded_messages Late results from a previous run discarded during the reset.
+     */
+    public void registerConnection(double setup_time, boolean reused, int discarded_messages) throws RunStatsException {
+        this.checkInitialized();
+        this.connection.set(setup_time, reused, discarded_messages);
+    }
+
+    /**
+     * Records the socket options in effect on the backend connections.
+     */
+    public void registerSocketProfiles(@NonNull SocketProfile video, @NonNull SocketProfile result,
+                                       @NonNull SocketProfile control) throws RunStatsException {
+        this.checkInitialized();
+        this.sockets.set(video, result, control);
+    }
+
+    /**
+     * Records how many tokens timed out at the end of a run.
+     *
+     * @param timeout      Token timeout, in milliseconds.
+     * @param expired      Tokens reclaimed because their frame got no result in time.
+     * @param late_results Results which arrived after their token had been reclaimed.
+     */
+    public void registerTokenTimeouts(int timeout, long expired, long late_results) throws RunStatsException {
+        this.checkInitialized();
+        this.token_timeouts.set(timeout, expired, late_results);
+    }
+
+    /**
+     * Records the totals for the datagram video transport at the end of a run.
+     *
+     * @param messages    Video messages sent.
+     * @param datagrams   Datagrams sent.
+     * @param bytes       Bytes sent, including datagram headers.
+     * @param send_errors Datagrams which could not be sent.
+     */
+    public void registerDatagrams(long messages, long datagrams, long bytes, long send_errors) throws RunStatsException {
+        this.checkInitialized();
+        this.datagrams.set(messages, datagrams, bytes, send_errors);
+    }
+
+    /**
+     * Records the totals for the result channel at the end of a run.
+     *
+     * @param messages         Messages received.
+     * @param bytes            Bytes received, including length prefixes.
+     * @param max_message_size Size of the largest message received, in bytes.
+     */
+    public void registerReceivedMessages(long messages, long bytes, int max_message_size) throws RunStatsException {
+        this.checkInitialized();
+        this.received.set(messages, bytes, max_message_size);
+    }
+
     public double getRollingRTT() throws RunStatsException {
         this.checkInitialized();
         return this.rtt.getMean();
     }
 
-    public JSONObject toJSON() throws JSONException, RunStatsException {
+    /**
+     * Takes a snapshot of the stats which can be streamed out without building the whole
+     * document in memory. The per-frame lists are written out one entry at a time, and the frame
+     * records without any intermediate objects.
+     */
+    public Snapshot snapshot() throws JSONException, RunStatsException {
 
         this.lock.lock();
         try {
             this.checkInitialized();
             this.checkFinalized();
 
-            JSONObject repr = new JSONObject();
-
-            repr.put(ControlConst.Stats.FIELD_RUNBEGIN, this.init.get());
-            repr.put(ControlConst.Stats.FIELD_RUNEND, this.finish.get());
-            repr.put(ControlConst.Stats.FIELD_RUNTIMESTAMPERROR, this.ntp.getOffsetError());
-            repr.put(ControlConst.Stats.FIELD_RUNSUCCESS, this.success.get());
-            repr.put(ControlConst.Stats.FIELD_RUNNTPOFFSET, this.ntp.getOffset());
-
-            JSONArray json_frames = new JSONArray();
-            for (Frame f : this.frames) {
-                json_frames.put(f.toJSON());
+            final int num_frames;
+            synchronized (this.frame_lock) {
+                num_frames = this.frames.size();
+            }
+            final int num_token_samples;
+            synchronized (this.token_window) {
+                num_token_samples = this.token_window.size();
             }
 
-            repr.put(ControlConst.Stats.FIELD_RUNFRAMELIST, json_frames);
-
-            return repr;
+            return new Snapshot(this.summaryToJSON(), copyOf(this.step_changes),
+                    copyOf(this.window_changes), num_frames, num_token_samples);
         } finally {
             this.lock.unlock();
         }
     }
 
+    private static <T> List<T> copyOf(List<T> list) {
+        // the lists are synchronized, but iterating over them needs to hold their lock
+        synchronized (list) {
+            return new ArrayList<>(list);
+        }
+    }
+
+    /**
+     * @return Everything but the per-frame lists.
+     */
+    private JSONObject summaryToJSON() throws JSONException {
+        JSONObject repr = new JSONObject();
+
+        repr.put(ControlConst.Stats.FIELD_RUNBEGIN, this.init.get());
+        repr.put(ControlConst.Stats.FIELD_RUNEND, this.finish.get());
+        repr.put(ControlConst.Stats.FIELD_RUNTIMESTAMPERROR, this.ntp.getOffsetError());
+        repr.put(ControlConst.Stats.FIELD_RUNSUCCESS, this.success.get());
+        repr.put(ControlConst.Stats.FIELD_RUNNTPOFFSET, this.ntp.getOffset());
+        repr.put(ControlConst.Stats.FIELD_RUNPUSHEDFRAMES, this.pushed_frames.get());
+        repr.put(ControlConst.Stats.FIELD_RUNREPLAYPASSES, this.replay_passes.get());
+        repr.put(ControlConst.Stats.FIELD_RUNREPLAYEDFRAMES, this.replayed_frames.get());
+        repr.put(ControlConst.Stats.FIELD_RUNCAPTURETOSEND, this.capture_to_send.toJSON());
+        repr.put(ControlConst.Stats.FIELD_RUNCAPTURETOFEEDBACK, this.capture_to_feedback.toJSON());
+        repr.put(ControlConst.Stats.FIELD_RUNTOKENPOOL, this.token_pool.toJSON());
+        repr.put(ControlConst.Stats.FIELD_RUNRECEIVED, this.received.toJSON());
+        repr.put(ControlConst.Stats.FIELD_RUNCONNECTION, this.connection.toJSON());
+        repr.put(ControlConst.Stats.FIELD_RUNSOCKETS, this.sockets.toJSON());
+        if (this.token_timeouts.isSet())
+            repr.put(ControlConst.Stats.FIELD_RUNTOKENTIMEOUTS, this.token_timeouts.toJSON());
+        if (this.datagrams.isSet())
+            repr.put(ControlConst.Stats.FIELD_RUNDATAGRAMS, this.datagrams.toJSON());
+        repr.put(ControlConst.Stats.FIELD_RUNFRAMETIMING, this.frameTimingToJSON());
+
+        return repr;
+    }
+
+    private JSONObject frameTimingToJSON() throws JSONException {
+        JSONObject repr = new JSONObject();
+        repr.put(ControlConst.Stats.FRAMETIMINGFIELD_PERIOD, this.frame_timing.getNominalPeriod());
+        repr.put(ControlConst.Stats.FRAMETIMINGFIELD_TICKS, this.frame_timing.getTicks());
+        repr.put(ControlConst.Stats.FRAMETIMINGFIELD_SKIPPED, this.frame_timing.getSkippedTicks());
+
+        // statistics are undefined (NaN) if no intervals were recorded, and JSON can't hold NaNs
+        if (this.frame_timing.getTicks() > 0) {
+            repr.put(ControlConst.Stats.FRAMETIMINGFIELD_MEAN, this.frame_timing.getMeanInterval());
+            repr.put(ControlConst.Stats.FRAMETIMINGFIELD_JITTER, this.frame_timing.getIntervalStdDev());
+            repr.put(ControlConst.Stats.FRAMETIMINGFIELD_MIN, this.frame_timing.getMinInterval());
+            repr.put(ControlConst.Stats.FRAMETIMINGFIELD_MAX, this.frame_timing.getMaxInterval());
+            repr.put(ControlConst.Stats.FRAMETIMINGFIELD_LATENESSMEAN, this.frame_timing.getMeanLateness());
+            repr.put(ControlConst.Stats.FRAMETIMINGFIELD_LATENESSMAX, this.frame_timing.getMaxLateness());
+        }
+
+        return repr;
+    }
+
     private void checkFinalized() throws RunStatsException {
         if (this.finish.get() < 0)
             throw new RunStatsException("Not finalized!");
@@ -165,46 +404,311 @@ public class RunStats {
         }
     }
 
-    private static class Frame {
-        final int id;
-        final double sent;
-        final double recv;
-        final boolean feedback;
+    /**
+     * Fixed view of the stats of a finished run, which may be written out more than once, e.g. to
+     * measure its length before sending it.
+     */
+    public class Snapshot implements StatsWriter.Source {
+
+        private final JSONObject summary;
+        private final List<StepChange> step_changes;
+        private final List<WindowChange> window_changes;
+        private final int num_frames;
+        private final int num_token_samples;
+
+        private Snapshot(JSONObject summary, List<StepChange> step_changes,
+                         List<WindowChange> window_changes, int num_frames, int num_token_samples) {
+            this.summary = summary;
+            this.step_changes = step_changes;
+            this.window_changes = window_changes;
+            this.num_frames = num_frames;
+            this.num_token_samples = num_token_samples;
+        }
 
-        final double server_recv;
-        final double server_sent;
+        @Override
+        public void writeTo(StatsWriter writer) throws IOException, JSONException {
+            this.writeTo(writer, true);
+        }
 
-        final int state_index;
+        /**
+         * @return The stats without the per-frame records, for when these are sent separately
+         * through {@link #writeFrameColumns(DataOutputStream)}.
+         */
+        public StatsWriter.Source withoutFrames() {
+            return new StatsWriter.Source() {
+                @Override
+                public void writeTo(StatsWriter writer) throws IOException, JSONException {
+                    Snapshot.this.writeTo(writer, false);
+                }
+            };
+        }
+
+        private void writeTo(StatsWriter writer, boolean include_frames) throws IOException, JSONException {
+            writer.beginObject();
+            writer.entries(this.summary);
+
+            if (include_frames) {
+                writer.name(ControlConst.Stats.FIELD_RUNFRAMELIST).beginArray();
+                synchronized (RunStats.this.frame_lock) {
+                    for (int i = 0; i < this.num_frames; i++)
+                        RunStats.this.frames.write(i, writer);
+                }
+                writer.endArray();
+            }
 
-        Frame(int id, double sent, double recv, boolean feedback, int state_index) {
-            this(id, sent, recv, feedback, -1, -1, state_index);
+            writer.name(ControlConst.Stats.FIELD_RUNSTEPCHANGES).beginArray();
+            for (StepChange c : this.step_changes)
+                writer.value(c.toJSON());
+            writer.endArray();
+
+            writer.name(ControlConst.Stats.FIELD_RUNTOKENWINDOW).beginArray();
+            synchronized (RunStats.this.token_window) {
+                for (int i = 0; i < this.num_token_samples; i++)
+                    RunStats.this.token_window.write(i, writer);
+            }
+            writer.endArray();
+
+            writer.name(ControlConst.Stats.FIELD_RUNWINDOWCHANGES).beginArray();
+            for (WindowChange w : this.window_changes)
+                writer.value(w.toJSON());
+            writer.endArray();
+
+            writer.endObject();
         }
 
-        Frame(int id, double sent, double recv, boolean feedback, double server_recv, double server_sent, int state_index) {
-            this.id = id;
-            this.sent = sent;
-            this.recv = recv;
-            this.feedback = feedback;
+        /**
+         * @return Size in bytes of the output of {@link #writeFrameColumns(DataOutputStream)}.
+         */
+        public long getFrameColumnsSize() {
+            return FrameRecords.getColumnsSize(this.num_frames);
+        }
 
-            this.server_recv = server_recv;
-            this.server_sent = server_sent;
+        /**
+         * Writes the per-frame records column by column, see {@link FrameRecords#writeColumns}.
+         */
+        public void writeFrameColumns(DataOutputStream out) throws IOException {
+            synchronized (RunStats.this.frame_lock) {
+                RunStats.this.frames.writeColumns(out, this.num_frames);
+            }
+        }
+    }
 
-            this.state_index = state_index;
+    private static class StepChange {
+        final int from_step;
+        final int to_step;
+        final double timestamp;
+        final double latency;
+        final boolean prefetched;
+
+        StepChange(int from_step, int to_step, double timestamp, double latency, boolean prefetched) {
+            this.from_step = from_step;
+            this.to_step = to_step;
+            this.timestamp = timestamp;
+            this.latency = latency;
+            this.prefetched = prefetched;
         }
 
-        double getRTT() {
-            return this.recv - this.sent;
+        JSONObject toJSON() throws JSONException {
+            JSONObject repr = new JSONObject();
+            repr.put(ControlConst.Stats.STEPCHANGEFIELD_FROM, this.from_step);
+            repr.put(ControlConst.Stats.STEPCHANGEFIELD_TO, this.to_step);
+            repr.put(ControlConst.Stats.STEPCHANGEFIELD_TIMESTAMP, this.timestamp);
+            repr.put(ControlConst.Stats.STEPCHANGEFIELD_LATENCY, this.latency);
+            repr.put(ControlConst.Stats.STEPCHANGEFIELD_PREFETCHED, this.prefetched);
+
+            return repr;
+        }
+    }
+
+    private static class TokenPoolStats {
+        long acquired;
+        long returned;
+        long waits;
+        double wait_time;
+
+        synchronized void set(long acquired, long returned, long waits, double wait_time) {
+            this.acquired = acquired;
+            this.returned = returned;
+            this.waits = waits;
+            this.wait_time = wait_time;
+        }
+
+        synchronized JSONObject toJSON() throws JSONException {
+            JSONObject repr = new JSONObject();
+            repr.put(ControlConst.Stats.TOKENPOOLFIELD_ACQUIRED, this.acquired);
+            repr.put(ControlConst.Stats.TOKENPOOLFIELD_RETURNED, this.returned);
+            repr.put(ControlConst.Stats.TOKENPOOLFIELD_WAITS, this.waits);
+            repr.put(ControlConst.Stats.TOKENPOOLFIELD_WAITTIME, this.wait_time);
+
+            return repr;
+        }
+    }
+
+    private static class ReceivedStats {
+        long messages;
+        long bytes;
+        int max_message_size;
+
+        synchronized void set(long messages, long bytes, int max_message_size) {
+            this.messages = messages;
+            this.bytes = bytes;
+            this.max_message_size = max_message_size;
+        }
+
+        synchronized JSONObject toJSON() throws JSONException {
+            JSONObject repr = new JSONObject();
+            repr.put(ControlConst.Stats.RECEIVEDFIELD_MESSAGES, this.messages);
+            repr.put(ControlConst.Stats.RECEIVEDFIELD_BYTES, this.bytes);
+            repr.put(ControlConst.Stats.RECEIVEDFIELD_MAXSIZE, this.max_message_size);
+
+            return repr;
+        }
+    }
+
+    private static class ConnectionStats {
+        double setup_time;
+        boolean reused;
+        int discarded_messages;
+
+        synchronized void set(double setup_time, boolean reused, int discarded_messages) {
+            this.setup_time = setup_time;
+            this.reused = reused;
+            this.discarded_messages = discarded_messages;
+        }
+
+        synchronized JSONObject toJSON() throws JSONException {
+            JSONObject repr = new JSONObject();
+            repr.put(ControlConst.Stats.CONNECTIONFIELD_SETUPTIME, this.setup_time);
+            repr.put(ControlConst.Stats.CONNECTIONFIELD_REUSED, this.reused);
+            repr.put(ControlConst.Stats.CONNECTIONFIELD_DISCARDED, this.discarded_messages);
+
+            return repr;
+        }
+    }
+
+    private static class SocketStats {
+        SocketProfile video;
+        SocketProfile result;
+        SocketProfile control;
+
+        synchronized void set(SocketProfile video, SocketProfile result, SocketProfile control) {
+            this.video = video;
+            this.result = result;
+            this.control = control;
+        }
+
+        synchronized JSONObject toJSON() throws JSONException {
+            JSONObject repr = new JSONObject();
+            if (this.video != null) {
+                repr.put(ControlConst.EXPPORTS_VIDEO, this.video.toJSON());
+                repr.put(ControlConst.EXPPORTS_RESULT, this.result.toJSON());
+                repr.put(ControlConst.EXPPORTS_CONTROL, this.control.toJSON());
+            }
+
+            return repr;
+        }
+    }
+
+    private static class TokenTimeoutStats {
+        boolean set = false;
+        int timeout;
+        long expired;
+        long late_results;
+
+        synchronized void set(int timeout, long expired, long late_results) {
+            this.set = true;
+            this.timeout = timeout;
+            this.expired = expired;
+            this.late_results = late_results;
+        }
+
+        synchronized boolean isSet() {
+            return this.set;
+        }
+
+        synchronized JSONObject toJSON() throws JSONException {
+            JSONObject repr = new JSONObject();
+            repr.put(ControlConst.Stats.TOKENTIMEOUTFIELD_TIMEOUT, this.timeout);
+            repr.put(ControlConst.Stats.TOKENTIMEOUTFIELD_EXPIRED, this.expired);
+            repr.put(ControlConst.Stats.TOKENTIMEOUTFIELD_LATE, this.late_results);
+
+            return repr;
+        }
+    }
+
+    private static class DatagramStats {
+        boolean set = false;
+        long messages;
+        long datagrams;
+        long bytes;
+        long send_errors;
+
+        synchronized void set(long messages, long datagrams, long bytes, long send_errors) {
+            this.set = true;
+            this.messages = messages;
+            this.datagrams = datagrams;
+            this.bytes = bytes;
+            this.send_errors = send_errors;
+        }
+
+        synchronized boolean isSet() {
+            return this.set;
+        }
+
+        synchronized JSONObject toJSON() throws JSONException {
+            JSONObject repr = new JSONObject();
+            repr.put(ControlConst.Stats.DATAGRAMFIELD_MESSAGES, this.messages);
+            repr.put(ControlConst.Stats.DATAGRAMFIELD_DATAGRAMS, this.datagrams);
+            repr.put(ControlConst.Stats.DATAGRAMFIELD_BYTES, this.bytes);
+            repr.put(ControlConst.Stats.DATAGRAMFIELD_ERRORS, this.send_errors);
+
+            return repr;
+        }
+    }
+
+    private static class WindowChange {
+        final double timestamp;
+        final int window;
+        final double rtt;
+
+        WindowChange(double timestamp, int window, double rtt) {
+            this.timestamp = timestamp;
+            this.window = window;
+            this.rtt = rtt;
         }
 
         JSONObject toJSON() throws JSONException {
             JSONObject repr = new JSONObject();
-            repr.put(ControlConst.Stats.FRAMEFIELD_ID, this.id);
-            repr.put(ControlConst.Stats.FRAMEFIELD_SENT, this.sent);
-            repr.put(ControlConst.Stats.FRAMEFIELD_RECV, this.recv);
-            repr.put(ControlConst.Stats.FRAMEFIELD_FEEDBACK, this.feedback);
-            repr.put(ControlConst.Stats.FRAMEFIELD_SERVERRECV, this.server_recv);
-            repr.put(ControlConst.Stats.FRAMEFIELD_SERVERSENT, this.server_sent);
-            repr.put(ControlConst.Stats.FRAMEFIELD_STATEIDX, this.state_index);
+            repr.put(ControlConst.Stats.WINDOWCHANGEFIELD_TIMESTAMP, this.timestamp);
+            repr.put(ControlConst.Stats.WINDOWCHANGEFIELD_WINDOW, this.window);
+            repr.put(ControlConst.Stats.WINDOWCHANGEFIELD_RTT, this.rtt);
+
+            return repr;
+        }
+    }
+
+    private static class LatencyStats {
+        private final SummaryStatistics stats;
+
+        LatencyStats() {
+            this.stats = new SummaryStatistics();
+        }
+
+        synchronized void addValue(double latency) {
+            this.stats.addValue(latency);
+        }
+
+        synchronized JSONObject toJSON() throws JSONException {
+            JSONObject repr = new JSONObject();
+            repr.put(ControlConst.Stats.LATENCYFIELD_COUNT, this.stats.getN());
+
+            // undefined (NaN) if no values were recorded
+            if (this.stats.getN() > 0) {
+                repr.put(ControlConst.Stats.LATENCYFIELD_MEAN, this.stats.getMean());
+                repr.put(ControlConst.Stats.LATENCYFIELD_STDDEV, this.stats.getStandardDeviation());
+                repr.put(ControlConst.Stats.LATENCYFIELD_MIN, this.stats.getMin());
+                repr.put(ControlConst.Stats.LATENCYFIELD_MAX, this.stats.getMax());
+            }
 
             return repr;
         }
@@ -0,0 +1,249 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.kth.molguin.edgedroid.network.control.experiment.run;
+
+import android.support.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+
+/**
+ * Minimal streaming JSON writer for the experiment stats.
+ * <p>
+ * Building the stats as one JSONObject and then converting it to a string and a byte array
+ * holds several copies of the payload in memory at once, which on long runs adds up to tens of
+ * megabytes. Instead, the per-frame records are written directly onto the output, and only the
+ * small sections of the stats are still built as JSONObjects. Since the control protocol sends
+ * the length of the payload before the payload itself, {@link #measure(Source)} runs the
+ * serialization once over a stream which only counts the bytes.
+ * <p>
+ * Numbers, strings and nested objects are formatted by org.json itself, so the output is the same
+ * document {@link JSONObject#toString()} would produce, up to the order of the keys.
+ */
+public class StatsWriter {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAX_DEPTH = 32;
+
+    /**
+     * Encodings for uploading the stats to Control, chosen by Control in the experiment config.
+     */
+    public enum Encoding {
+        /**
+         * Plain JSON text, the original format.
+         */
+        JSON,
+        /**
+         * The same JSON, zlib-compressed.
+         */
+        DEFLATE,
+        /**
+         * JSON without the frame records, followed by the records column by column in binary.
+         */
+        COLUMNAR
+    }
+
+    /**
+     * Something that can be serialized through a {@link StatsWriter}. Must produce the same
+     * output every time it is written.
+     */
+    public interface Source {
+        void writeTo(StatsWriter writer) throws IOException, JSONException;
+    }
+
+    private final Writer out;
+    private final boolean[] has_elements; // per nesting level, whether a separator is needed
+    private int depth;
+    private boolean after_name;
+
+    private StatsWriter(Writer out) {
+        this.out = out;
+        this.has_elements = new boolean[MAX_DEPTH];
+        this.depth = 0;
+        this.after_name = false;
+    }
+
+    /**
+     * @return Length in bytes of the UTF-8 serialization of the source.
+     */
+    public static long measure(@NonNull Source source) throws IOException, JSONException {
+        final CountingOutputStream counter = new CountingOutputStream(null);
+        write(source, counter);
+        return counter.getCount();
+    }
+
+    /**
+     * Serializes the source onto a stream, encoded in UTF-8. The stream is flushed, but not
+     * closed.
+     *
+     * @return Number of bytes written.
+     */
+    public static long write(@NonNull Source source, @NonNull OutputStream out) throws IOException, JSONException {
+        final CountingOutputStream counter = new CountingOutputStream(out);
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(counter, UTF8));
+        source.writeTo(new StatsWriter(writer));
+        writer.flush();
+        return counter.getCount();
+    }
+
+    private void beforeValue() throws IOException {
+        if (this.after_name) {
+            this.after_name = false;
+            return;
+        }
+
+        if (this.depth > 0) {
+            if (this.has_elements[this.depth - 1])
+                this.out.write(',');
+            this.has_elements[this.depth - 1] = true;
+        }
+    }
+
+    private StatsWriter open(char c) throws IOException {
+        if (this.depth == MAX_DEPTH)
+            throw new IllegalStateException("Stats nested too deeply!");
+
+        this.beforeValue();
+        this.out.write(c);
+        this.has_elements[this.depth++] = false;
+        return this;
+    }
+
+    private StatsWriter close(char c) throws IOException {
+        if (this.depth == 0 || this.after_name)
+            throw new IllegalStateException("Unbalanced stats document!");
+
+        this.depth--;
+        this.out.write(c);
+        return this;
+    }
+
+    public StatsWriter beginObject() throws IOException {
+        return this.open('{');
+    }
+
+    public StatsWriter endObject() throws IOException {
+        return this.close('}');
+    }
+
+    public StatsWriter beginArray() throws IOException {
+        return this.open('[');
+    }
+
+    public StatsWriter endArray() throws IOException {
+        return this.close(']');
+    }
+
+    public StatsWriter name(@NonNull String name) throws IOException {
+        this.beforeValue();
+        this.out.write(JSONObject.quote(name));
+        this.out.write(':');
+        this.after_name = true;
+        return this;
+    }
+
+    public StatsWriter value(long value) throws IOException {
+        this.beforeValue();
+        this.out.write(Long.toString(value));
+        return this;
+    }
+
+    public StatsWriter value(double value) throws IOException, JSONException {
+        this.beforeValue();
+        this.out.write(JSONObject.numberToString(value));
+        return this;
+    }
+
+    public StatsWriter value(boolean value) throws IOException {
+        this.beforeValue();
+        this.out.write(value ? "true" : "false");
+        return this;
+    }
+
+    /**
+     * Writes a value as stored in a JSONObject or JSONArray.
+     */
+    public StatsWriter value(Object value) throws IOException, JSONException {
+        this.beforeValue();
+        if (value instanceof JSONObject || value instanceof JSONArray)
+            this.out.write(value.toString());
+        else if (value instanceof String)
+            this.out.write(JSONObject.quote((String) value));
+        else if (value instanceof Number)
+            this.out.write(JSONObject.numberToString((Number) value));
+        else
+            this.out.write(String.valueOf(value)); // booleans and JSONObject.NULL
+        return this;
+    }
+
+    /**
+     * Copies all the entries of an object into the object currently being written.
+     */
+    public StatsWriter entries(@NonNull JSONObject object) throws IOException, JSONException {
+        final Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            final String key = keys.next();
+            this.name(key).value(object.get(key));
+        }
+        return this;
+    }
+
+    /**
+     * Counts the bytes going through to an underlying stream, which may be null to only count.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+            this.count = 0;
+        }
+
+        long getCount() {
+            return this.count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (this.out != null)
+                this.out.write(b);
+            this.count++;
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            if (this.out != null)
+                this.out.write(b, off, len);
+            this.count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (this.out != null)
+                this.out.flush();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.kth.molguin.edgedroid.network.control.experiment.run;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import se.kth.molguin.edgedroid.network.control.ControlConst;
+
+/**
+ * Samples of the token window occupancy, stored column-wise in growable primitive arrays.
+ * <p>
+ * The window is sampled every time a token is taken or returned, i.e. twice per frame, so like
+ * {@link FrameRecords} recording a sample only writes into the arrays, and objects are only
+ * created when the samples are serialized at the end of the run.
+ * <p>
+ * Not thread-safe.
+ */
+class TokenWindowRecords {
+
+    private int size;
+    private double[] timestamps;
+    private int[] windows;
+    private int[] in_flight;
+
+    TokenWindowRecords(int initial_capacity) {
+        this.size = 0;
+        this.timestamps = new double[initial_capacity];
+        this.windows = new int[initial_capacity];
+        this.in_flight = new int[initial_capacity];
+    }
+
+    void add(double timestamp, int window, int in_flight) {
+        if (this.size == this.timestamps.length)
+            this.grow();
+
+        final int i = this.size++;
+        this.timestamps[i] = timestamp;
+        this.windows[i] = window;
+        this.in_flight[i] = in_flight;
+    }
+
+    private void grow() {
+        final int capacity = Math.max(16, this.timestamps.length * 2);
+        this.timestamps = Arrays.copyOf(this.timestamps, capacity);
+        this.windows = Arrays.copyOf(this.windows, capacity);
+        this.in_flight = Arrays.copyOf(this.in_flight, capacity);
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    JSONObject toJSON(int i) throws JSONException {
+        JSONObject repr = new JSONObject();
+        repr.put(ControlConst.Stats.TOKENFIELD_TIMESTAMP, this.timestamps[i]);
+        repr.put(ControlConst.Stats.TOKENFIELD_WINDOW, this.windows[i]);
+        repr.put(ControlConst.Stats.TOKENFIELD_INFLIGHT, this.in_flight[i]);
+
+        return repr;
+    }
+
+    /**
+     * Streams a sample, with the same fields as {@link #toJSON(int)}.
+     */
+    void write(int i, StatsWriter writer) throws IOException, JSONException {
+        writer.beginObject();
+        writer.name(ControlConst.Stats.TOKENFIELD_TIMESTAMP).value(this.timestamps[i]);
+        writer.name(ControlConst.Stats.TOKENFIELD_WINDOW).value(this.windows[i]);
+        writer.name(ControlConst.Stats.TOKENFIELD_INFLIGHT).value(this.in_flight[i]);
+        writer.endObject();
+    }
+}
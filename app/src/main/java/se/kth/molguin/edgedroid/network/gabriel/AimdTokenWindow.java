@@ -0,0 +1,96 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.kth.molguin.edgedroid.network.gabriel;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Additive-increase/multiplicative-decrease controller for the size of a {@link TokenPool}
+ * window, driven by the measured round-trip time.
+ * <p>
+ * While the RTT stays at or below the target latency, the window grows by roughly one token per
+ * window's worth of results (i.e. one token per RTT). Whenever the RTT exceeds the target, the
+ * window is cut by {@link #DECREASE_FACTOR}, at most once per RTT so that the results of frames
+ * sent before the cut don't shrink it further.
+ * <p>
+ * Not thread-safe; meant to be updated exclusively from the listener thread.
+ */
+public class AimdTokenWindow {
+
+    public static final double DECREASE_FACTOR = 0.5;
+    private static final int MIN_WINDOW = 1;
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private final TokenPool pool;
+    private final int max_window;
+    private final double target_latency;
+
+    private double window;
+    private long last_decrease;
+
+    /**
+     * @param pool           Token pool whose window is controlled. Its current window is used
+     *                       as the initial window.
+     * @param max_window     Upper bound for the window.
+     * @param target_latency Target RTT, in milliseconds.
+     */
+    public AimdTokenWindow(@NonNull TokenPool pool, int max_window, double target_latency) {
+        this.pool = pool;
+        this.max_window = Math.max(max_window, MIN_WINDOW);
+        this.target_latency = target_latency;
+        this.window = pool.getWindow();
+        this.last_decrease = System.nanoTime();
+    }
+
+    /**
+     * Updates the window after receiving a result.
+     *
+     * @param rtt Current (rolling) RTT, in milliseconds.
+     * @return The new window size if it changed, -1 otherwise.
+     */
+    public int update(double rtt) {
+        return this.update(rtt, System.nanoTime());
+    }
+
+    /**
+     * @param rtt Current (rolling) RTT, in milliseconds.
+     * @param now Current time, as given by {@link System#nanoTime()}.
+     * @return The new window size if it changed, -1 otherwise.
+     */
+    int update(double rtt, long now) {
+        if (Double.isNaN(rtt))
+            return -1;
+
+        final int previous = (int) this.window;
+        if (rtt <= this.target_latency)
+            this.window = Math.min(this.window + 1.0 / this.window, this.max_window);
+        else {
+            if ((now - this.last_decrease) / NANOS_PER_MILLI < rtt)
+                return -1;
+
+            this.window = Math.max(this.window * DECREASE_FACTOR, MIN_WINDOW);
+            this.last_decrease = now;
+        }
+
+        final int current = (int) this.window;
+        if (current == previous)
+            return -1;
+
+        this.pool.setWindow(current);
+        return current;
+    }
+}
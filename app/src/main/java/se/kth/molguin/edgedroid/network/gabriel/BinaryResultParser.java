@@ -0,0 +1,137 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.kth.molguin.edgedroid.network.gabriel;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Parser for results in the binary result protocol.
+ * <p>
+ * When the experiment config selects the binary protocol, the backend sends results with a fixed
+ * layout instead of JSON text (all fields big-endian, like the length prefixes around them):
+ * <pre>
+ *   offset  size  field
+ *        0     1  protocol version, see {@link #VERSION}
+ *        1     8  frame ID
+ *        9     1  status, see {@link #STATUS_SUCCESS}
+ *       10     4  state index, negative if not available
+ *       14     8  server receive timestamp (IEEE 754 double), NaN if not available
+ *       22     8  server send timestamp (IEEE 754 double), NaN if not available
+ *       30     -  optional payload, up to the end of the message
+ * </pre>
+ * Decoding a result thus boils down to a handful of shifts, regardless of its contents.
+ * <p>
+ * Instances are reusable, but not thread-safe.
+ */
+public class BinaryResultParser {
+
+    public static final byte VERSION = 1;
+    public static final byte STATUS_SUCCESS = 0;
+    public static final int HEADER_LENGTH = 30;
+
+    private static final int OFFSET_FRAME_ID = 1;
+    private static final int OFFSET_STATUS = 9;
+    private static final int OFFSET_STATE_IDX = 10;
+    private static final int OFFSET_SERVER_RECV = 14;
+    private static final int OFFSET_SERVER_SEND = 22;
+
+    // parsed fields
+    private boolean success;
+    private long frame_id;
+    private int state_index;
+    private double server_recv;
+    private double server_sent;
+    private int payload_offset;
+    private int payload_length;
+
+    /**
+     * Parses a binary result message.
+     *
+     * @param message Buffer holding the message.
+     * @param offset  Start of the message in the buffer.
+     * @param length  Length of the message.
+     * @return True if the message was parsed. False if it is too short or of an unknown version,
+     * e.g. because the backend replied with JSON instead.
+     */
+    public boolean parse(@NonNull byte[] message, int offset, int length) {
+        if (length < HEADER_LENGTH || message[offset] != VERSION)
+            return false;
+
+        this.frame_id = readLong(message, offset + OFFSET_FRAME_ID);
+        this.success = message[offset + OFFSET_STATUS] == STATUS_SUCCESS;
+        this.state_index = readInt(message, offset + OFFSET_STATE_IDX);
+        this.server_recv = Double.longBitsToDouble(readLong(message, offset + OFFSET_SERVER_RECV));
+        this.server_sent = Double.longBitsToDouble(readLong(message, offset + OFFSET_SERVER_SEND));
+        this.payload_offset = offset + HEADER_LENGTH;
+        this.payload_length = length - HEADER_LENGTH;
+
+        // state index is required for successful results, same as in the JSON protocol
+        if (!this.success)
+            this.state_index = -1;
+        else if (this.state_index < 0)
+            return false;
+        return true;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) << 24 | (b[i + 1] & 0xff) << 16 | (b[i + 2] & 0xff) << 8 | (b[i + 3] & 0xff);
+    }
+
+    private static long readLong(byte[] b, int i) {
+        return ((long) readInt(b, i)) << 32 | (readInt(b, i + 4) & 0xffffffffL);
+    }
+
+    public boolean isSuccess() {
+        return this.success;
+    }
+
+    public long getFrameId() {
+        return this.frame_id;
+    }
+
+    /**
+     * @return State index of a successful result, or -1 otherwise.
+     */
+    public int getStateIndex() {
+        return this.state_index;
+    }
+
+    public boolean hasServerTimestamps() {
+        return !Double.isNaN(this.server_recv) && !Double.isNaN(this.server_sent);
+    }
+
+    public double getServerRecv() {
+        return this.server_recv;
+    }
+
+    public double getServerSent() {
+        return this.server_sent;
+    }
+
+    /**
+     * @return Offset of the payload in the buffer which was last parsed.
+     */
+    public int getPayloadOffset() {
+        return this.payload_offset;
+    }
+
+    /**
+     * @return Length of the payload, 0 if the result carried none.
+     */
+    public int getPayloadLength() {
+        return this.payload_length;
+    }
+}
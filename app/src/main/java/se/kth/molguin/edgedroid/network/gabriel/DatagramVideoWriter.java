@@ -0,0 +1,159 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.kth.molguin.edgedroid.network.gabriel;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Writes Gabriel video messages to a connected datagram channel.
+ * <p>
+ * Messages are encoded exactly like on the TCP stream (length-prefixed header followed by the
+ * length-prefixed frame), and then split into fragments small enough to fit in a single
+ * unfragmented IP packet. Every datagram starts with a fixed header (all fields big-endian):
+ * <pre>
+ *   offset  size  field
+ *        0     2  epoch, changes whenever the backend connections are reset
+ *        2     2  fragment index
+ *        4     2  fragment count
+ *        6     2  reserved, zero
+ *        8     4  datagram sequence number, increases by one with every datagram sent
+ *       12     4  message number, increases by one with every message sent
+ *       16     -  fragment payload, {@link #MAX_FRAGMENT_PAYLOAD} bytes except for the last one
+ * </pre>
+ * Lost or late datagrams never block later frames; the backend reassembles messages and simply
+ * drops incomplete ones, and the sequence numbers let it account for losses. A reference
+ * reassembler lives with the unit tests.
+ * <p>
+ * Not thread-safe; meant to be used exclusively by the stream thread.
+ */
+public class DatagramVideoWriter implements VideoWriter {
+
+    public static final int MAX_DATAGRAM_SIZE = 1400; // leaves room for IP/UDP headers below a 1500 MTU
+    public static final int HEADER_SIZE = 16;
+    public static final int MAX_FRAGMENT_PAYLOAD = MAX_DATAGRAM_SIZE - HEADER_SIZE;
+    public static final int MAX_FRAGMENTS = 0xFFFF;
+
+    private static final int INITIAL_PREAMBLE_SIZE = 64;
+
+    private final DatagramChannel channel;
+    private final short epoch;
+    private final ByteBuffer datagram;
+    private ByteBuffer preamble; // header length, header and frame length
+
+    private int sequence;
+
+    // written by the stream thread only, but may be read from any thread
+    private volatile int message;
+    private volatile long datagrams_sent;
+    private volatile long bytes_sent;
+    private volatile long send_errors;
+
+    /**
+     * @param channel Datagram channel, connected to the backend.
+     * @param epoch   Current epoch of the backend connections, see
+     *                {@link se.kth.molguin.edgedroid.network.control.experiment.Sockets#getEpoch()}.
+     */
+    public DatagramVideoWriter(@NonNull DatagramChannel channel, int epoch) {
+        this.channel = channel;
+        this.epoch = (short) epoch;
+        this.datagram = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        this.preamble = ByteBuffer.allocate(INITIAL_PREAMBLE_SIZE);
+        this.sequence = 0;
+        this.message = 0;
+        this.datagrams_sent = 0;
+        this.bytes_sent = 0;
+        this.send_errors = 0;
+    }
+
+    @Override
+    public void write(@NonNull byte[] header, int header_len, @NonNull ByteBuffer frame) throws IOException {
+        final int preamble_len = 8 + header_len;
+        if (this.preamble.capacity() < preamble_len)
+            this.preamble = ByteBuffer.allocate(preamble_len);
+
+        this.preamble.clear();
+        this.preamble.putInt(header_len);
+        this.preamble.put(header, 0, header_len);
+        this.preamble.putInt(frame.remaining());
+        this.preamble.flip();
+
+        final long total = (long) preamble_len + frame.remaining();
+        final long count = (total + MAX_FRAGMENT_PAYLOAD - 1) / MAX_FRAGMENT_PAYLOAD;
+        if (count > MAX_FRAGMENTS)
+            throw new IOException("Message too large for datagram transport: " + total + " bytes");
+
+        final int message = ++this.message;
+        for (int i = 0; i < count; i++) {
+            this.datagram.clear();
+            this.datagram.putShort(this.epoch);
+            this.datagram.putShort((short) i);
+            this.datagram.putShort((short) count);
+            this.datagram.putShort((short) 0);
+            this.datagram.putInt(this.sequence++);
+            this.datagram.putInt(message);
+            transfer(this.preamble, this.datagram);
+            transfer(frame, this.datagram);
+            this.datagram.flip();
+
+            try {
+                this.bytes_sent += this.channel.write(this.datagram);
+                this.datagrams_sent++;
+            } catch (PortUnreachableException e) {
+                // ICMP error caused by an earlier datagram; this one is lost, but the next ones
+                // may well get through, so just account for it like for any other loss
+                this.send_errors++;
+            }
+        }
+    }
+
+    private static void transfer(ByteBuffer src, ByteBuffer dst) {
+        final int n = Math.min(src.remaining(), dst.remaining());
+        final int limit = src.limit();
+        src.limit(src.position() + n);
+        dst.put(src);
+        src.limit(limit);
+    }
+
+    /**
+     * @return Number of messages written.
+     */
+    public int getMessagesSent() {
+        return this.message;
+    }
+
+    public long getDatagramsSent() {
+        return this.datagrams_sent;
+    }
+
+    /**
+     * @return Bytes sent, including datagram headers.
+     */
+    public long getBytesSent() {
+        return this.bytes_sent;
+    }
+
+    /**
+     * @return Number of datagrams which could not be sent because the backend was unreachable.
+     */
+    public long getSendErrors() {
+        return this.send_errors;
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.kth.molguin.edgedroid.network.gabriel;
+
+import android.support.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads length-prefixed Gabriel messages from a non-blocking channel.
+ * <p>
+ * Messages may arrive in arbitrary pieces; the reader keeps track of partially read messages
+ * between calls to {@link #read()}. Messages are read into a {@link ReceiveBuffer}, so reading
+ * doesn't allocate once the buffer has grown to fit the largest message. Not thread-safe.
+ */
+public class MessageReader {
+
+    private final ReadableByteChannel channel;
+    private final ReceiveBuffer receive_buffer;
+    private final ByteBuffer length_buffer;
+    private ByteBuffer message; // view of the receive buffer, reused while it doesn't grow
+    private boolean reading_message; // false while reading the length prefix
+
+    public MessageReader(@NonNull ReadableByteChannel channel, @NonNull ReceiveBuffer receive_buffer) {
+        this.channel = channel;
+        this.receive_buffer = receive_buffer;
+        this.length_buffer = ByteBuffer.allocate(4);
+        this.message = null;
+        this.reading_message = false;
+    }
+
+    /**
+     * Reads as much as is currently available from the channel, up to the end of the next message.
+     *
+     * @return True if the next message has completely arrived, in which case it can be found in
+     * the receive buffer. False otherwise.
+     * @throws EOFException if the channel reached end-of-stream.
+     */
+    public boolean read() throws IOException {
+        if (!this.reading_message) {
+            if (!this.fill(this.length_buffer))
+                return false;
+
+            final int length = this.length_buffer.getInt(0);
+            final byte[] array = this.receive_buffer.prepare(length);
+            if (this.message == null || this.message.array() != array)
+                this.message = ByteBuffer.wrap(array);
+
+            this.message.clear();
+            this.message.limit(length);
+            this.length_buffer.clear();
+            this.reading_message = true;
+        }
+
+        if (!this.fill(this.message))
+            return false;
+
+        this.reading_message = false;
+        return true;
+    }
+
+    /**
+     * @return True if no part of the next message has been read yet.
+     */
+    public boolean isIdle() {
+        return !this.reading_message && this.length_buffer.position() == 0;
+    }
+
+    private boolean fill(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = this.channel.read(buffer);
+            if (read < 0)
+                throw new EOFException("Channel closed.");
+            else if (read == 0)
+                return false;
+        }
+        return true;
+    }
+}
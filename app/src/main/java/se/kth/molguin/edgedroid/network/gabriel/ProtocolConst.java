@@ -36,6 +36,14 @@ public class ProtocolConst {
 
     public static final String STATUS_SUCCESS = "success";
 
+    // reset handshake for backend connections kept open across runs:
+    // a video message with header {"reset": nonce} and an empty frame, answered by a result
+    // message holding RESET_ACK + nonce once the backend has dropped all state from the previous
+    // run. Both are in-band, so everything before them on either channel belongs to the old run.
+    public static final String HEADER_MESSAGE_RESET = "reset";
+    public static final int RESET_ACK = 0x000000c2;
+    public static final int RESET_ACK_LENGTH = 8;
+
 
     public static final String VIDEO_HEADER_FMT = "{\"frame_id\":%d}";
 }
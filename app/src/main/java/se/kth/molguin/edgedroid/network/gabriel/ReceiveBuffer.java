@@ -0,0 +1,114 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.kth.molguin.edgedroid.network.gabriel;
+
+import java.io.IOException;
+
+/**
+ * Growable, reusable buffer for incoming length-prefixed messages.
+ * <p>
+ * Messages are read into the same array over and over, which only grows when a message larger
+ * than any previous one arrives. Lengths above a fixed maximum are rejected before anything is
+ * allocated, so a corrupt length prefix can't take down the app with a huge allocation.
+ * <p>
+ * Also keeps count of the messages and bytes received through it. Not thread-safe.
+ */
+public class ReceiveBuffer {
+
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 8 * 1024 * 1024;
+    private static final int INITIAL_CAPACITY = 4096;
+    private static final int LENGTH_PREFIX_SIZE = 4;
+
+    private final int max_message_size;
+    private byte[] buffer;
+    private int length;
+
+    private long messages;
+    private long bytes_received;
+    private int largest_message;
+
+    public ReceiveBuffer() {
+        this(DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    public ReceiveBuffer(int max_message_size) {
+        this.max_message_size = max_message_size;
+        this.buffer = new byte[Math.min(INITIAL_CAPACITY, max_message_size)];
+        this.length = 0;
+        this.messages = 0;
+        this.bytes_received = 0;
+        this.largest_message = 0;
+    }
+
+    /**
+     * Makes room for the next message. Any previous message is discarded.
+     *
+     * @param length Length of the message, as announced by its prefix.
+     * @return The backing array, to be filled from index 0 up to length.
+     * @throws IOException if the length is negative or exceeds the maximum message size.
+     */
+    public byte[] prepare(int length) throws IOException {
+        if (length < 0 || length > this.max_message_size)
+            throw new IOException("Invalid message length: " + length
+                    + " (maximum: " + this.max_message_size + ")");
+
+        if (length > this.buffer.length) {
+            int capacity = this.buffer.length;
+            while (capacity < length)
+                capacity = (int) Math.min((long) capacity * 2, this.max_message_size);
+            this.buffer = new byte[capacity];
+        }
+
+        this.length = length;
+        this.messages++;
+        this.bytes_received += LENGTH_PREFIX_SIZE + length;
+        this.largest_message = Math.max(this.largest_message, length);
+        return this.buffer;
+    }
+
+    /**
+     * @return The backing array holding the current message. Only valid until the next call to
+     * {@link #prepare(int)}.
+     */
+    public byte[] getArray() {
+        return this.buffer;
+    }
+
+    /**
+     * @return Length of the current message.
+     */
+    public int getLength() {
+        return this.length;
+    }
+
+    public long getMessageCount() {
+        return this.messages;
+    }
+
+    /**
+     * @return Total bytes received, including length prefixes.
+     */
+    public long getBytesReceived() {
+        return this.bytes_received;
+    }
+
+    /**
+     * @return Length of the largest message received.
+     */
+    public int getLargestMessage() {
+        return this.largest_message;
+    }
+}
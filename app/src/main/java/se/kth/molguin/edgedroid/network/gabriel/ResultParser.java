@@ -0,0 +1,498 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.kth.molguin.edgedroid.network.gabriel;
+
+import android.support.annotation.NonNull;
+
+import java.nio.charset.Charset;
+
+/**
+ * Single-pass parser for Gabriel result messages.
+ * <p>
+ * Pulls the status, frame ID, state index and server timestamps straight out of the raw message
+ * bytes, including the nested "result" object (which the backend sends as an escaped JSON
+ * string), without building Strings or JSON object trees. Unknown fields are skipped.
+ * <p>
+ * The parser only understands the subset of JSON the backend actually produces; whenever it runs
+ * into something it can't handle (or a message is missing required fields) {@link #parse}
+ * returns false, and the message should be handled by a full JSON parser instead.
+ * <p>
+ * Instances are reusable, but not thread-safe.
+ */
+public class ResultParser {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte[] KEY_STATUS = ProtocolConst.HEADER_MESSAGE_STATUS.getBytes(UTF8);
+    private static final byte[] KEY_FRAME_ID = ProtocolConst.HEADER_MESSAGE_FRAME_ID.getBytes(UTF8);
+    private static final byte[] KEY_RESULT = ProtocolConst.HEADER_MESSAGE_RESULT.getBytes(UTF8);
+    private static final byte[] KEY_STATE_IDX = ProtocolConst.HEADER_MESSAGE_STATE_IDX.getBytes(UTF8);
+    private static final byte[] KEY_SERVER_RECV = ProtocolConst.HEADER_MESSAGE_SERVER_RECV.getBytes(UTF8);
+    private static final byte[] KEY_SERVER_SEND = ProtocolConst.HEADER_MESSAGE_SERVER_SEND.getBytes(UTF8);
+    private static final byte[] STATUS_SUCCESS = ProtocolConst.STATUS_SUCCESS.getBytes(UTF8);
+
+    // powers of ten which are exactly representable as doubles
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final int MAX_EXACT_DIGITS = 15;
+    private static final int MAX_DEPTH = 32;
+
+    // scratch space for the unescaped nested result
+    private byte[] scratch;
+
+    // parsing state
+    private byte[] buf;
+    private int pos;
+    private int end;
+    private long parsed_long;
+    private double parsed_double;
+
+    // parsed fields
+    private boolean has_status;
+    private boolean success;
+    private boolean has_frame_id;
+    private long frame_id;
+    private boolean has_result;
+    private int state_index;
+    private double server_recv;
+    private double server_sent;
+    private boolean has_server_recv;
+    private boolean has_server_sent;
+
+    public ResultParser() {
+        this.scratch = new byte[256];
+    }
+
+    /**
+     * Parses a result message.
+     *
+     * @param message Buffer holding the message.
+     * @param offset  Start of the message in the buffer.
+     * @param length  Length of the message.
+     * @return True if the message was parsed and all required fields were found. False if the
+     * message should be handed to a full JSON parser instead.
+     */
+    public boolean parse(@NonNull byte[] message, int offset, int length) {
+        this.has_status = false;
+        this.success = false;
+        this.has_frame_id = false;
+        this.frame_id = -1;
+        this.has_result = false;
+        this.state_index = -1;
+        this.has_server_recv = false;
+        this.has_server_sent = false;
+        this.server_recv = Double.NaN;
+        this.server_sent = Double.NaN;
+
+        this.buf = message;
+        this.pos = offset;
+        this.end = offset + length;
+
+        try {
+            if (!this.parseMessage())
+                return false;
+        } finally {
+            this.buf = null; // don't hold on to the message
+        }
+
+        // state index is required for successful results
+        return this.has_status && this.has_frame_id && this.has_result
+                && (!this.success || this.state_index >= 0);
+    }
+
+    public boolean isSuccess() {
+        return this.success;
+    }
+
+    public long getFrameId() {
+        return this.frame_id;
+    }
+
+    /**
+     * @return State index reported by the backend, or -1 if the result wasn't successful.
+     */
+    public int getStateIndex() {
+        return this.success ? this.state_index : -1;
+    }
+
+    public boolean hasServerTimestamps() {
+        return this.has_server_recv && this.has_server_sent;
+    }
+
+    public double getServerRecv() {
+        return this.server_recv;
+    }
+
+    public double getServerSent() {
+        return this.server_sent;
+    }
+
+    private boolean parseMessage() {
+        if (!this.expect('{'))
+            return false;
+        if (this.peek() == '}')
+            return this.expect('}');
+
+        do {
+            this.skipWhitespace();
+            final int key_start = this.pos + 1;
+            if (!this.skipString())
+                return false;
+            final int key_end = this.pos - 1;
+            if (!this.expect(':'))
+                return false;
+
+            this.skipWhitespace();
+            if (this.keyEquals(key_start, key_end, KEY_STATUS)) {
+                final int value_start = this.pos + 1;
+                if (!this.skipString())
+                    return false;
+                this.has_status = true;
+                this.success = this.keyEquals(value_start, this.pos - 1, STATUS_SUCCESS);
+            } else if (this.keyEquals(key_start, key_end, KEY_FRAME_ID)) {
+                if (!this.parseLong())
+                    return false;
+                this.frame_id = this.parsed_long;
+                this.has_frame_id = true;
+            } else if (this.keyEquals(key_start, key_end, KEY_RESULT)) {
+                if (!this.parseResult())
+                    return false;
+                this.has_result = true;
+            } else if (!this.skipValue(0))
+                return false;
+        } while (this.nextMember());
+
+        return this.expect('}');
+    }
+
+    /**
+     * Parses the nested result, which is usually an escaped JSON string, but is also accepted as
+     * a plain object.
+     */
+    private boolean parseResult() {
+        if (this.peek() == '{')
+            return this.parseResultObject();
+        if (this.peek() != '"')
+            return false;
+
+        // unescape the string into the scratch buffer, then parse the scratch buffer
+        final int length = this.unescapeString();
+        if (length < 0)
+            return false;
+
+        final byte[] outer_buf = this.buf;
+        final int outer_pos = this.pos;
+        final int outer_end = this.end;
+
+        this.buf = this.scratch;
+        this.pos = 0;
+        this.end = length;
+        final boolean ok = this.parseResultObject() && this.atEnd();
+
+        this.buf = outer_buf;
+        this.pos = outer_pos;
+        this.end = outer_end;
+        return ok;
+    }
+
+    private boolean parseResultObject() {
+        if (!this.expect('{'))
+            return false;
+        if (this.peek() == '}')
+            return this.expect('}');
+
+        do {
+            this.skipWhitespace();
+            final int key_start = this.pos + 1;
+            if (!this.skipString())
+                return false;
+            final int key_end = this.pos - 1;
+            if (!this.expect(':'))
+                return false;
+
+            this.skipWhitespace();
+            if (this.keyEquals(key_start, key_end, KEY_STATE_IDX)) {
+                if (!this.parseLong())
+                    return false;
+                this.state_index = (int) this.parsed_long;
+            } else if (this.keyEquals(key_start, key_end, KEY_SERVER_RECV)) {
+                if (!this.parseDouble())
+                    return false;
+                this.server_recv = this.parsed_double;
+                this.has_server_recv = true;
+            } else if (this.keyEquals(key_start, key_end, KEY_SERVER_SEND)) {
+                if (!this.parseDouble())
+                    return false;
+                this.server_sent = this.parsed_double;
+                this.has_server_sent = true;
+            } else if (!this.skipValue(0))
+                return false;
+        } while (this.nextMember());
+
+        return this.expect('}');
+    }
+
+    private void skipWhitespace() {
+        while (this.pos < this.end) {
+            final byte b = this.buf[this.pos];
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r')
+                return;
+            this.pos++;
+        }
+    }
+
+    private int peek() {
+        this.skipWhitespace();
+        return this.pos < this.end ? this.buf[this.pos] : -1;
+    }
+
+    private boolean expect(char c) {
+        if (this.peek() != c)
+            return false;
+        this.pos++;
+        return true;
+    }
+
+    private boolean atEnd() {
+        this.skipWhitespace();
+        return this.pos == this.end;
+    }
+
+    /**
+     * @return True if there's another member in the current object, after consuming the comma.
+     */
+    private boolean nextMember() {
+        if (this.peek() != ',')
+            return false;
+        this.pos++;
+        return true;
+    }
+
+    private boolean keyEquals(int start, int end, byte[] key) {
+        if (end - start != key.length)
+            return false;
+        for (int i = 0; i < key.length; i++)
+            if (this.buf[start + i] != key[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Skips over a string, leaving the position right after its closing quote. Strings with
+     * escapes are skipped correctly, but keys and status values containing escapes won't match.
+     */
+    private boolean skipString() {
+        if (this.peek() != '"')
+            return false;
+        this.pos++;
+        while (this.pos < this.end) {
+            final byte b = this.buf[this.pos++];
+            if (b == '"')
+                return true;
+            else if (b == '\\')
+                this.pos++;
+        }
+        return false;
+    }
+
+    /**
+     * Unescapes the string at the current position into the scratch buffer.
+     *
+     * @return Length of the unescaped string, or -1 if it can't be handled here.
+     */
+    private int unescapeString() {
+        this.pos++; // opening quote
+        int length = 0;
+        while (this.pos < this.end) {
+            byte b = this.buf[this.pos++];
+            if (b == '"')
+                return length;
+
+            if (b == '\\') {
+                if (this.pos >= this.end)
+                    return -1;
+                b = this.buf[this.pos++];
+                switch (b) {
+                    case '"':
+                    case '\\':
+                    case '/':
+                        break;
+                    case 'n':
+                        b = '\n';
+                        break;
+                    case 't':
+                        b = '\t';
+                        break;
+                    case 'r':
+                        b = '\r';
+                        break;
+                    default:
+                        // \\uXXXX and friends; not worth handling here
+                        return -1;
+                }
+            }
+
+            if (length == this.scratch.length) {
+                final byte[] new_scratch = new byte[this.scratch.length * 2];
+                System.arraycopy(this.scratch, 0, new_scratch, 0, length);
+                this.scratch = new_scratch;
+            }
+            this.scratch[length++] = b;
+        }
+        return -1;
+    }
+
+    private boolean skipValue(int depth) {
+        if (depth > MAX_DEPTH)
+            return false;
+
+        final int c = this.peek();
+        if (c == '"')
+            return this.skipString();
+
+        if (c == '{' || c == '[') {
+            final char close = c == '{' ? '}' : ']';
+            this.pos++;
+            if (this.peek() == close) {
+                this.pos++;
+                return true;
+            }
+
+            do {
+                if (c == '{') {
+                    if (!this.skipString() || !this.expect(':'))
+                        return false;
+                }
+                if (!this.skipValue(depth + 1))
+                    return false;
+            } while (this.nextMember());
+            return this.expect(close);
+        }
+
+        // number or literal
+        final int start = this.pos;
+        while (this.pos < this.end) {
+            final byte b = this.buf[this.pos];
+            if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\t' || b == '\n' || b == '\r')
+                break;
+            this.pos++;
+        }
+        return this.pos > start;
+    }
+
+    private boolean parseLong() {
+        this.skipWhitespace();
+        boolean negative = false;
+        if (this.pos < this.end && this.buf[this.pos] == '-') {
+            negative = true;
+            this.pos++;
+        }
+
+        final int start = this.pos;
+        long value = 0;
+        while (this.pos < this.end) {
+            final byte b = this.buf[this.pos];
+            if (b < '0' || b > '9')
+                break;
+            if (this.pos - start >= 18)
+                return false; // might overflow, let the full parser deal with it
+            value = value * 10 + (b - '0');
+            this.pos++;
+        }
+
+        // fractions and exponents are left to the full parser
+        if (this.pos == start || (this.pos < this.end
+                && (this.buf[this.pos] == '.' || this.buf[this.pos] == 'e' || this.buf[this.pos] == 'E')))
+            return false;
+
+        this.parsed_long = negative ? -value : value;
+        return true;
+    }
+
+    private boolean parseDouble() {
+        this.skipWhitespace();
+        final int start = this.pos;
+
+        boolean negative = false;
+        if (this.pos < this.end && this.buf[this.pos] == '-') {
+            negative = true;
+            this.pos++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean any_digits = false;
+
+        while (this.pos < this.end && isDigit(this.buf[this.pos])) {
+            any_digits = true;
+            if (mantissa != 0 || this.buf[this.pos] != '0') {
+                mantissa = mantissa * 10 + (this.buf[this.pos] - '0');
+                digits++;
+            }
+            this.pos++;
+            if (digits > MAX_EXACT_DIGITS)
+                return this.parseDoubleSlow(start);
+        }
+
+        if (this.pos < this.end && this.buf[this.pos] == '.') {
+            this.pos++;
+            while (this.pos < this.end && isDigit(this.buf[this.pos])) {
+                any_digits = true;
+                if (mantissa != 0 || this.buf[this.pos] != '0')
+                    digits++;
+                mantissa = mantissa * 10 + (this.buf[this.pos] - '0');
+                exponent--;
+                this.pos++;
+                if (digits > MAX_EXACT_DIGITS)
+                    return this.parseDoubleSlow(start);
+            }
+        }
+
+        if (!any_digits)
+            return false;
+
+        if (this.pos < this.end && (this.buf[this.pos] == 'e' || this.buf[this.pos] == 'E'))
+            return this.parseDoubleSlow(start);
+
+        // both mantissa and the power of ten are exact, so a single operation rounds correctly
+        if (exponent < -22)
+            return this.parseDoubleSlow(start);
+        final double value = exponent == 0 ? mantissa : mantissa / POW10[-exponent];
+        this.parsed_double = negative ? -value : value;
+        return true;
+    }
+
+    private boolean parseDoubleSlow(int start) {
+        // rare: too many digits or exponent notation
+        this.pos = start;
+        if (!this.skipValue(0))
+            return false;
+        try {
+            this.parsed_double = Double.parseDouble(new String(this.buf, start, this.pos - start, UTF8));
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
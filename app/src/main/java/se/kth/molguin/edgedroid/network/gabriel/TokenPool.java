@@ -16,75 +16,219 @@
 
 package se.kth.molguin.edgedroid.network.gabriel;
 
-import android.util.Log;
-
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
-
-import se.kth.molguin.edgedroid.IntegratedAsyncLog;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Lock-free pool of Gabriel tokens.
+ * <p>
+ * The window size and the number of available tokens are packed into a single atomic long, so
+ * taking, returning and resizing are all single compare-and-set operations. Threads waiting for
+ * a token park, and are unparked whenever tokens are returned or the window grows; the fast path
+ * neither blocks nor allocates. Instead of logging every token operation, the pool keeps counters
+ * which can be collected at the end of a run.
+ */
 public class TokenPool {
 
-    private final static String LOG_TAG = "TokenPool";
     public final static int DEFAULT_MAX_TOKEN_COUNT = 1;
 
-    private final ReentrantLock token_lock;
-    private final Condition has_token;
-    private final IntegratedAsyncLog log;
-    private final int max_token_count;
-    private int current_token_count;
+    // high 32 bits: window size, low 32 bits: available tokens (may be negative after shrinking)
+    private final AtomicLong state;
+    private final Queue<Thread> waiters;
+
+    private final AtomicLong acquired;
+    private final AtomicLong returned;
+    private final AtomicLong waits;
+    private final AtomicLong wait_nanos;
 
-    public TokenPool(IntegratedAsyncLog log) throws InterruptedException {
-        this(DEFAULT_MAX_TOKEN_COUNT, log);
+    public TokenPool() {
+        this(DEFAULT_MAX_TOKEN_COUNT);
     }
 
-    public TokenPool(int max_token_count, IntegratedAsyncLog log) throws InterruptedException {
+    public TokenPool(int max_token_count) {
+        this.state = new AtomicLong(pack(max_token_count, max_token_count));
+        this.waiters = new ConcurrentLinkedQueue<>();
 
-        this.token_lock = new ReentrantLock();
-        this.has_token = this.token_lock.newCondition();
-        this.log = log;
-        this.max_token_count = max_token_count;
-        this.reset();
+        this.acquired = new AtomicLong(0);
+        this.returned = new AtomicLong(0);
+        this.waits = new AtomicLong(0);
+        this.wait_nanos = new AtomicLong(0);
     }
 
-    public void reset() throws InterruptedException {
-        log.submitLog(Log.DEBUG, LOG_TAG, "Resetting token count", false);
-        this.token_lock.lockInterruptibly();
-        try {
-            this.current_token_count = this.max_token_count;
-            Log.d(LOG_TAG, "New token count: " + this.current_token_count);
-            this.has_token.signalAll();
-        } finally {
-            this.token_lock.unlock();
-        }
+    private static long pack(int window, int available) {
+        return ((long) window << 32) | (available & 0xFFFFFFFFL);
+    }
+
+    private static int window(long state) {
+        return (int) (state >>> 32);
     }
 
+    private static int available(long state) {
+        return (int) state;
+    }
+
+    private void signalWaiters() {
+        for (Thread waiter : this.waiters)
+            LockSupport.unpark(waiter);
+    }
+
+    public void reset() {
+        long current;
+        do {
+            current = this.state.get();
+        } while (!this.state.compareAndSet(current, pack(window(current), window(current))));
+        this.signalWaiters();
+    }
+
+    /**
+     * Takes a token, waiting until one is available.
+     */
     public void getToken() throws InterruptedException {
-        log.submitLog(Log.DEBUG, LOG_TAG, "Requesting token...", false);
-        this.token_lock.lockInterruptibly();
+        if (this.tryGetToken())
+            return;
+
+        // slow path
+        this.waits.incrementAndGet();
+        final long wait_start = System.nanoTime();
+        final Thread current = Thread.currentThread();
+        this.waiters.add(current);
         try {
-            while (this.current_token_count <= 0) {
-                log.submitLog(Log.DEBUG, LOG_TAG, "No tokens available, wait...", false);
-                this.has_token.await();
+            // re-checking after enqueueing ensures we can't miss a wakeup
+            while (!this.tryGetToken()) {
+                LockSupport.park(this);
+                if (Thread.interrupted())
+                    throw new InterruptedException();
             }
-            this.current_token_count--;
-            log.submitLog(Log.DEBUG, LOG_TAG, "Got token!", false);
-            log.submitLog(Log.DEBUG, LOG_TAG, "New count: " + this.current_token_count, false);
         } finally {
-            this.token_lock.unlock();
+            this.waiters.remove(current);
+            this.wait_nanos.addAndGet(System.nanoTime() - wait_start);
         }
     }
 
-    public void putToken() throws InterruptedException {
-        log.submitLog(Log.DEBUG, LOG_TAG, "Returning token...", false);
-        this.token_lock.lockInterruptibly();
+    /**
+     * Takes a token, waiting at most the given time for one to become available.
+     *
+     * @param timeout_nanos Maximum time to wait, in nanoseconds.
+     * @return Whether a token was obtained.
+     */
+    public boolean getToken(long timeout_nanos) throws InterruptedException {
+        if (this.tryGetToken())
+            return true;
+
+        // slow path
+        this.waits.incrementAndGet();
+        final long wait_start = System.nanoTime();
+        final long deadline = wait_start + timeout_nanos;
+        final Thread current = Thread.currentThread();
+        this.waiters.add(current);
         try {
-            this.current_token_count = Math.min(this.current_token_count + 1, this.max_token_count);
-            log.submitLog(Log.DEBUG, LOG_TAG, "New count: " + this.current_token_count, false);
-            this.has_token.signalAll();
+            // re-checking after enqueueing ensures we can't miss a wakeup
+            while (!this.tryGetToken()) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return false;
+
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+            return true;
         } finally {
-            this.token_lock.unlock();
+            this.waiters.remove(current);
+            this.wait_nanos.addAndGet(System.nanoTime() - wait_start);
         }
     }
 
+    /**
+     * Non-blocking version of {@link #getToken()}.
+     *
+     * @return Whether a token was obtained.
+     */
+    public boolean tryGetToken() {
+        long current;
+        do {
+            current = this.state.get();
+            if (available(current) <= 0)
+                return false;
+        } while (!this.state.compareAndSet(current, pack(window(current), available(current) - 1)));
+
+        this.acquired.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Returns a token to the pool.
+     */
+    public void putToken() {
+        long current;
+        do {
+            current = this.state.get();
+            if (available(current) >= window(current))
+                return; // pool is already full
+        } while (!this.state.compareAndSet(current, pack(window(current), available(current) + 1)));
+
+        this.returned.incrementAndGet();
+        if (!this.waiters.isEmpty())
+            this.signalWaiters();
+    }
+
+    /**
+     * @return Size of the token window, i.e. the maximum number of frames in flight.
+     */
+    public int getWindow() {
+        return window(this.state.get());
+    }
+
+    /**
+     * @return Number of tokens currently held by in-flight frames.
+     */
+    public int getInFlight() {
+        final long current = this.state.get();
+        return window(current) - available(current);
+    }
+
+    /**
+     * Resizes the token window. If the window shrinks below the number of tokens in flight, no
+     * new tokens are handed out until enough of them have been returned.
+     *
+     * @param window New size of the token window.
+     */
+    public void setWindow(int window) {
+        long current;
+        do {
+            current = this.state.get();
+        } while (!this.state.compareAndSet(current,
+                pack(window, available(current) + window - window(current))));
+        this.signalWaiters();
+    }
+
+    /**
+     * @return Total number of tokens handed out.
+     */
+    public long getAcquiredCount() {
+        return this.acquired.get();
+    }
+
+    /**
+     * @return Total number of tokens returned.
+     */
+    public long getReturnedCount() {
+        return this.returned.get();
+    }
+
+    /**
+     * @return Number of times a thread had to wait for a token.
+     */
+    public long getWaitCount() {
+        return this.waits.get();
+    }
+
+    /**
+     * @return Total time spent waiting for tokens, in milliseconds.
+     */
+    public double getWaitTime() {
+        return this.wait_nanos.get() / 1000000.0;
+    }
 }
@@ -0,0 +1,158 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.kth.molguin.edgedroid.network.gabriel;
+
+import android.support.annotation.NonNull;
+
+import java.nio.charset.Charset;
+
+/**
+ * Encodes Gabriel video headers (flat JSON objects with integer values) into a reusable byte
+ * array, without going through Strings or Formatters.
+ * <p>
+ * Field keys are encoded once, when their {@link Field} is created, so encoding a header only
+ * copies the pre-encoded keys and writes the ASCII digits of the values. Headers are built with
+ * {@link #begin()}, any number of {@link #put(Field, long)} calls, and {@link #end()}:
+ * <pre>
+ *     encoder.begin().put(VideoHeaderEncoder.FRAME_ID, id).end();
+ *     out.write(encoder.getBuffer(), encoder.getLength(), frame);
+ * </pre>
+ * Not thread-safe.
+ */
+public class VideoHeaderEncoder {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int INITIAL_SIZE = 32;
+    private static final int MAX_DIGITS = 20; // sign + 19 digits of Long.MAX_VALUE
+
+    /**
+     * Pre-encoded header key.
+     */
+    public static final class Field {
+        private final byte[] key; // "key":
+
+        public Field(@NonNull String name) {
+            this.key = ("\"" + name + "\":").getBytes(ASCII);
+        }
+    }
+
+    public static final Field FRAME_ID = new Field(ProtocolConst.HEADER_MESSAGE_FRAME_ID);
+    public static final Field RESET = new Field(ProtocolConst.HEADER_MESSAGE_RESET);
+
+    private byte[] buffer;
+    private int length;
+    private boolean first_field;
+
+    public VideoHeaderEncoder() {
+        this.buffer = new byte[INITIAL_SIZE];
+        this.length = 0;
+    }
+
+    /**
+     * Starts a new header, discarding the previous one.
+     */
+    public VideoHeaderEncoder begin() {
+        this.length = 0;
+        this.first_field = true;
+        this.append((byte) '{');
+        return this;
+    }
+
+    /**
+     * Appends an integer field to the header.
+     */
+    public VideoHeaderEncoder put(@NonNull Field field, long value) {
+        this.ensureCapacity(1 + field.key.length + MAX_DIGITS);
+        if (!this.first_field)
+            this.buffer[this.length++] = ',';
+        this.first_field = false;
+
+        System.arraycopy(field.key, 0, this.buffer, this.length, field.key.length);
+        this.length += field.key.length;
+        this.appendDigits(value);
+        return this;
+    }
+
+    /**
+     * Completes the header.
+     */
+    public VideoHeaderEncoder end() {
+        this.append((byte) '}');
+        return this;
+    }
+
+    /**
+     * Shorthand for encoding the standard header of a frame.
+     *
+     * @param frame_id ID of the frame.
+     */
+    public VideoHeaderEncoder encodeFrameHeader(int frame_id) {
+        return this.begin().put(FRAME_ID, frame_id).end();
+    }
+
+    /**
+     * @return Buffer holding the encoded header in its first {@link #getLength()} bytes. Only
+     * valid until the next call to {@link #begin()}.
+     */
+    public byte[] getBuffer() {
+        return this.buffer;
+    }
+
+    public int getLength() {
+        return this.length;
+    }
+
+    private void append(byte b) {
+        this.ensureCapacity(1);
+        this.buffer[this.length++] = b;
+    }
+
+    private void appendDigits(long value) {
+        if (value == Long.MIN_VALUE) {
+            // can't be negated, but it's not worth special-casing in the loop either
+            final byte[] digits = Long.toString(value).getBytes(ASCII);
+            System.arraycopy(digits, 0, this.buffer, this.length, digits.length);
+            this.length += digits.length;
+            return;
+        }
+
+        if (value < 0) {
+            this.buffer[this.length++] = '-';
+            value = -value;
+        }
+
+        // count the digits first, then write them back to front
+        int n_digits = 1;
+        for (long v = value / 10; v != 0; v /= 10)
+            n_digits++;
+
+        int pos = this.length + n_digits;
+        this.length = pos;
+        do {
+            this.buffer[--pos] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (this.length + extra > this.buffer.length) {
+            final byte[] new_buffer = new byte[Math.max(this.buffer.length * 2, this.length + extra)];
+            System.arraycopy(this.buffer, 0, new_buffer, 0, this.length);
+            this.buffer = new_buffer;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.kth.molguin.edgedroid.network.gabriel;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Writes Gabriel video messages to a channel.
+ * <p>
+ * A message is made up of a length-prefixed header followed by a length-prefixed frame. The
+ * length prefixes and header are assembled in a reusable direct buffer, and are written out
+ * together with the frame in a single gathering write, so frame data is never copied on the Java
+ * side.
+ * <p>
+ * Messages can be written either in one go to a blocking channel, or piecewise to a
+ * non-blocking one.
+ * <p>
+ * Not thread-safe; meant to be used exclusively by the stream thread.
+ */
+public class VideoStreamWriter implements VideoWriter {
+
+    private static final int INITIAL_PREAMBLE_SIZE = 64;
+
+    private final GatheringByteChannel channel;
+    private final ByteBuffer[] buffers;
+    private ByteBuffer preamble; // header length, header and frame length
+    private long pending; // bytes of the current message left to write
+
+    public VideoStreamWriter(@NonNull GatheringByteChannel channel) {
+        this.channel = channel;
+        this.preamble = ByteBuffer.allocateDirect(INITIAL_PREAMBLE_SIZE);
+        this.buffers = new ByteBuffer[2];
+        this.pending = 0;
+    }
+
+    /**
+     * Writes a complete video message.
+     *
+     * @param header Encoded header of the message.
+     * @param frame  Frame data. It is consumed by the write.
+     */
+    public void write(@NonNull byte[] header, @NonNull ByteBuffer frame) throws IOException {
+        this.write(header, header.length, frame);
+    }
+
+    /**
+     * Writes a complete video message. The channel must be in blocking mode.
+     *
+     * @param header     Buffer holding the encoded header of the message.
+     * @param header_len Length of the header in the buffer.
+     * @param frame      Frame data. It is consumed by the write.
+     */
+    @Override
+    public void write(@NonNull byte[] header, int header_len, @NonNull ByteBuffer frame) throws IOException {
+        this.begin(header, header_len, frame);
+        while (!this.writePending()) {
+            // blocking channels write everything at once, but loop anyway in case of partial writes
+        }
+    }
+
+    /**
+     * Prepares a video message to be written through {@link #writePending()}, for use with
+     * non-blocking channels.
+     *
+     * @param header     Buffer holding the encoded header of the message.
+     * @param header_len Length of the header in the buffer.
+     * @param frame      Frame data. It is consumed as the message is written.
+     */
+    public void begin(@NonNull byte[] header, int header_len, @NonNull ByteBuffer frame) {
+        final int preamble_len = 8 + header_len;
+        if (this.preamble.capacity() < preamble_len)
+            this.preamble = ByteBuffer.allocateDirect(preamble_len);
+
+        this.preamble.clear();
+        this.preamble.putInt(header_len);
+        this.preamble.put(header, 0, header_len);
+        this.preamble.putInt(frame.remaining());
+        this.preamble.flip();
+
+        this.buffers[0] = this.preamble;
+        this.buffers[1] = frame;
+        this.pending = this.preamble.remaining() + frame.remaining();
+    }
+
+    /**
+     * Writes as much of the current message as the channel accepts.
+     *
+     * @return Whether the message has been completely written.
+     */
+    public boolean writePending() throws IOException {
+        if (this.pending > 0)
+            this.pending -= this.channel.write(this.buffers);
+
+        if (this.pending > 0)
+            return false;
+
+        this.buffers[1] = null; // don't hold on to the frame
+        return true;
+    }
+}
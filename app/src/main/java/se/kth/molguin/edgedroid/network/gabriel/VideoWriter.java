@@ -0,0 +1,36 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.kth.molguin.edgedroid.network.gabriel;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends Gabriel video messages (a header and a frame) to the backend over some transport.
+ */
+public interface VideoWriter {
+
+    /**
+     * Writes a complete video message, blocking until it has been handed to the transport.
+     *
+     * @param header     Buffer holding the encoded header of the message.
+     * @param header_len Length of the header in the buffer.
+     * @param frame      Frame data. It is consumed by the write.
+     */
+    void write(@NonNull byte[] header, int header_len, @NonNull ByteBuffer frame) throws IOException;
+}
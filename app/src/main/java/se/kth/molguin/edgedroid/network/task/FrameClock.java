@@ -0,0 +1,145 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.kth.molguin.edgedroid.network.task;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Drift-free frame clock emulating a camera running at a fixed frame rate.
+ * <p>
+ * Ticks are scheduled on absolute deadlines derived from System.nanoTime(), i.e. tick n is due
+ * at start + n * (1 / fps), so fractional periods (e.g. 66.67 ms at 15 FPS) are honored exactly
+ * and delays never accumulate. What happens when ticks are missed (e.g. after a long GC pause)
+ * is governed by a {@link MissedTickPolicy}.
+ * <p>
+ * Clocks don't own a thread; they are driven by a shared {@link FrameScheduler} while started.
+ */
+public class FrameClock {
+
+    public enum MissedTickPolicy {
+        /**
+         * Drop all missed ticks but the most recent one, like a real camera would.
+         */
+        SKIP,
+        /**
+         * Fire all missed ticks back-to-back until the clock catches up.
+         */
+        BURST
+    }
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private final int fps;
+    private final MissedTickPolicy policy;
+    private final Runnable tick;
+    private final FrameTiming timing;
+    private final FrameScheduler scheduler;
+    private final AtomicBoolean running_flag;
+
+    // pacing state, only touched by the scheduler thread
+    // (attaching the clock to the scheduler publishes the initial values)
+    private boolean started;
+    private long start;
+    private long next_tick;
+    private long last_fired;
+
+    /**
+     * @param scheduler Scheduler thread driving this clock.
+     * @param fps       Tick rate.
+     * @param policy    Policy for missed ticks.
+     * @param timing    Collects the actual timing of the ticks.
+     * @param tick      Task to run on every tick.
+     */
+    public FrameClock(@NonNull FrameScheduler scheduler, int fps, @NonNull MissedTickPolicy policy,
+                      @NonNull FrameTiming timing, @NonNull Runnable tick) {
+        this.scheduler = scheduler;
+        this.fps = fps;
+        this.policy = policy;
+        this.timing = timing;
+        this.tick = tick;
+        this.running_flag = new AtomicBoolean(false);
+    }
+
+    public void start() {
+        if (!this.running_flag.getAndSet(true)) {
+            this.started = false;
+            this.scheduler.attach(this);
+        }
+    }
+
+    public void stop() {
+        if (this.running_flag.getAndSet(false))
+            this.scheduler.detach(this);
+    }
+
+    private long deadline(long tick_n) {
+        return this.start + (tick_n * NANOS_PER_SECOND) / this.fps;
+    }
+
+    /**
+     * @param now Current System.nanoTime().
+     * @return Whether the next tick is due. The first tick is due immediately after starting.
+     */
+    boolean isDue(long now) {
+        return !this.started || now - this.deadline(this.next_tick) >= 0;
+    }
+
+    /**
+     * @return Deadline of the next tick, in System.nanoTime() time. Only valid after the first
+     * tick has fired.
+     */
+    long getNextDeadline() {
+        return this.deadline(this.next_tick);
+    }
+
+    /**
+     * Fires the next tick. Only called from the scheduler thread.
+     *
+     * @param now Current System.nanoTime().
+     */
+    void fire(long now) {
+        if (!this.running_flag.get())
+            return;
+
+        if (!this.started) {
+            this.started = true;
+            this.start = now;
+            this.next_tick = 0;
+        }
+
+        final long deadline = this.deadline(this.next_tick);
+        if (this.next_tick > 0)
+            this.timing.registerTick((now - this.last_fired) / NANOS_PER_MILLI,
+                    (now - deadline) / NANOS_PER_MILLI);
+        this.last_fired = now;
+
+        this.tick.run();
+        this.next_tick++;
+
+        if (this.policy == MissedTickPolicy.SKIP) {
+            // skip straight to the most recent tick that is due, if we're behind
+            final long current_tick = ((System.nanoTime() - this.start) * this.fps) / NANOS_PER_SECOND;
+            if (current_tick > this.next_tick) {
+                this.timing.registerSkippedTicks(current_tick - this.next_tick);
+                this.next_tick = current_tick;
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.kth.molguin.edgedroid.network.task;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool of recyclable {@link VideoFrame}s.
+ * <p>
+ * Only a handful of frames are in flight at any time (one being pushed, one waiting in the frame
+ * buffer and one being sent), so after warming up the pool hands out recycled frames exclusively
+ * and the stream path doesn't allocate.
+ */
+public class FramePool {
+
+    private static final int DEFAULT_CAPACITY = 4;
+
+    private final ArrayBlockingQueue<VideoFrame> free_frames;
+
+    public FramePool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public FramePool(int capacity) {
+        this.free_frames = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * @return A frame with a single reference, held by the caller.
+     */
+    public VideoFrame acquire() {
+        VideoFrame frame = this.free_frames.poll();
+        if (frame == null)
+            frame = new VideoFrame(this);
+        frame.retain();
+        return frame;
+    }
+
+    void recycle(VideoFrame frame) {
+        frame.clear();
+        // if the pool is already full, just let the frame be garbage collected
+        this.free_frames.offer(frame);
+    }
+}
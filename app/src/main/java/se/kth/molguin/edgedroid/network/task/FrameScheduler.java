@@ -0,0 +1,118 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.kth.molguin.edgedroid.network.task;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import se.kth.molguin.edgedroid.IntegratedAsyncLog;
+
+/**
+ * Single long-lived thread driving every {@link FrameClock} in a session.
+ * <p>
+ * Clocks attach to the scheduler when started and detach when stopped, so changing steps doesn't
+ * create or destroy any threads. The scheduler sleeps until the earliest deadline among the
+ * attached clocks, and parks indefinitely while no clocks are attached.
+ */
+public class FrameScheduler {
+
+    private static final String LOG_TAG = "FrameScheduler";
+
+    private final List<FrameClock> clocks;
+    private final AtomicBoolean running_flag;
+    private final IntegratedAsyncLog log;
+    private final Thread thread;
+
+    public FrameScheduler(@NonNull IntegratedAsyncLog log) {
+        this.log = log;
+        this.clocks = new CopyOnWriteArrayList<>();
+        this.running_flag = new AtomicBoolean(false);
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                FrameScheduler.this.loop();
+            }
+        }, "FrameScheduler");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Starts the scheduler thread. A scheduler can only be started once.
+     */
+    public void start() {
+        if (!this.running_flag.getAndSet(true))
+            this.thread.start();
+    }
+
+    /**
+     * Stops the scheduler thread. Attached clocks stop ticking.
+     */
+    public void shutdown() {
+        if (this.running_flag.getAndSet(false))
+            LockSupport.unpark(this.thread);
+        this.clocks.clear();
+    }
+
+    void attach(@NonNull FrameClock clock) {
+        this.clocks.add(clock);
+        LockSupport.unpark(this.thread);
+    }
+
+    void detach(@NonNull FrameClock clock) {
+        this.clocks.remove(clock);
+        // no need to wake up the thread, it recalculates its deadline on its next wakeup
+    }
+
+    private void loop() {
+        while (this.running_flag.get()) {
+            final long now = System.nanoTime();
+            boolean waiting = false;
+            long next_deadline = 0;
+
+            for (FrameClock clock : this.clocks) {
+                try {
+                    if (clock.isDue(now))
+                        clock.fire(now);
+                } catch (RuntimeException e) {
+                    // don't let a single failing step take down playback for the whole session
+                    this.log.e(LOG_TAG, "Exception in frame clock tick, detaching clock.", e);
+                    this.clocks.remove(clock);
+                    continue;
+                }
+
+                // nanoTime values may overflow, so only compare differences
+                final long deadline = clock.getNextDeadline();
+                if (!waiting || deadline - next_deadline < 0) {
+                    next_deadline = deadline;
+                    waiting = true;
+                }
+            }
+
+            if (!waiting)
+                LockSupport.park(this);
+            else {
+                final long wait = next_deadline - System.nanoTime();
+                if (wait > 0)
+                    LockSupport.parkNanos(this, wait);
+            }
+        }
+    }
+}
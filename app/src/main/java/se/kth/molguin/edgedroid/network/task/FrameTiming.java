@@ -0,0 +1,93 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.kth.molguin.edgedroid.network.task;
+
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+
+/**
+ * Collects the actual timing of emulated camera frames, to verify the accuracy of the
+ * {@link FrameClock}s over a run.
+ */
+public class FrameTiming {
+
+    private final double nominal_period;
+    private final SummaryStatistics intervals;
+    private final SummaryStatistics lateness;
+    private long skipped_ticks;
+
+    /**
+     * @param fps Nominal frame rate.
+     */
+    public FrameTiming(int fps) {
+        this.nominal_period = 1000.0 / fps;
+        this.intervals = new SummaryStatistics();
+        this.lateness = new SummaryStatistics();
+        this.skipped_ticks = 0;
+    }
+
+    /**
+     * @param interval Time in milliseconds since the previous tick.
+     * @param lateness Time in milliseconds between the deadline of the tick and it firing.
+     */
+    synchronized void registerTick(double interval, double lateness) {
+        this.intervals.addValue(interval);
+        this.lateness.addValue(lateness);
+    }
+
+    synchronized void registerSkippedTicks(long count) {
+        this.skipped_ticks += count;
+    }
+
+    public double getNominalPeriod() {
+        return this.nominal_period;
+    }
+
+    public synchronized long getTicks() {
+        return this.intervals.getN();
+    }
+
+    public synchronized long getSkippedTicks() {
+        return this.skipped_ticks;
+    }
+
+    public synchronized double getMeanInterval() {
+        return this.intervals.getMean();
+    }
+
+    /**
+     * @return Standard deviation of the inter-frame intervals, i.e. the frame jitter.
+     */
+    public synchronized double getIntervalStdDev() {
+        return this.intervals.getStandardDeviation();
+    }
+
+    public synchronized double getMinInterval() {
+        return this.intervals.getMin();
+    }
+
+    public synchronized double getMaxInterval() {
+        return this.intervals.getMax();
+    }
+
+    public synchronized double getMeanLateness() {
+        return this.lateness.getMean();
+    }
+
+    public synchronized double getMaxLateness() {
+        return this.lateness.getMax();
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.kth.molguin.edgedroid.network.task;
+
+import android.support.annotation.NonNull;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, in-memory LRU cache of step traces.
+ * <p>
+ * Wraps another TraceSource and keeps copies of the steps it provides in memory, up to a budget
+ * in bytes, so that consecutive runs of the same experiment don't need to touch storage at all.
+ * The least recently used steps are evicted when the budget is exceeded.
+ */
+public class StepCache implements TraceSource {
+
+    private final TraceSource backing;
+    private final long max_bytes;
+    private final LinkedHashMap<Integer, StepTrace> steps;
+
+    private long cached_bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param backing   Source to load steps from on cache misses.
+     * @param max_bytes Maximum total size in bytes of the cached steps.
+     */
+    public StepCache(@NonNull TraceSource backing, long max_bytes) {
+        this.backing = backing;
+        this.max_bytes = max_bytes;
+        this.steps = new LinkedHashMap<>(16, 0.75f, true); // access-order, i.e. LRU
+        this.cached_bytes = 0;
+        this.hits = 0;
+        this.misses = 0;
+        this.evictions = 0;
+    }
+
+    @Override
+    public synchronized StepTrace getStep(int index) throws IOException, JSONException {
+        final StepTrace cached = this.steps.get(index);
+        if (cached != null) {
+            this.hits++;
+            return cached;
+        }
+
+        this.misses++;
+        final StepTrace trace = this.backing.getStep(index);
+        if (trace.getSize() > this.max_bytes)
+            // would never fit, don't bother
+            return trace;
+
+        // make room for the new step
+        final Iterator<Map.Entry<Integer, StepTrace>> it = this.steps.entrySet().iterator();
+        while (it.hasNext() && this.cached_bytes + trace.getSize() > this.max_bytes) {
+            this.cached_bytes -= it.next().getValue().getSize();
+            it.remove();
+            this.evictions++;
+        }
+
+        final StepTrace copy = trace.copyToMemory();
+        this.steps.put(index, copy);
+        this.cached_bytes += copy.getSize();
+        return copy;
+    }
+
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    public synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+    public synchronized long getCachedBytes() {
+        return this.cached_bytes;
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.kth.molguin.edgedroid.network.task;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only view of a step trace file.
+ * <p>
+ * Trace files are laid out as a length-prefixed JSON header followed by length-prefixed JPEG
+ * frames. The whole file is mapped into memory once, and frames are handed out as read-only
+ * slices of that mapping, so playing back a step requires neither syscalls nor copies.
+ * <p>
+ * Instances are immutable and may be shared between threads. Frame slices must not be modified
+ * by consumers; use {@link ByteBuffer#duplicate()} if an independent position is needed.
+ */
+public class StepTrace {
+
+    private static final String HEADER_NAME_KEY = "name";
+    private static final String HEADER_INDEX_KEY = "index";
+    private static final String HEADER_NFRAMES_KEY = "num_frames";
+    private static final String HEADER_KEYFRAME_KEY = "key_frame";
+
+    private final ByteBuffer data;
+    @Nullable
+    private final MappedByteBuffer mapping; // only set if data is the whole mapping of a file
+    private final TraceIndex index;
+    private final ByteBuffer[] frames;
+
+    private final int stepIndex;
+    private final String name;
+    private final int key_frame;
+
+    StepTrace(@NonNull ByteBuffer data, @NonNull TraceIndex index) throws IOException, JSONException {
+        this(data, null, index);
+    }
+
+    private StepTrace(@NonNull ByteBuffer data, @Nullable MappedByteBuffer mapping,
+                      @NonNull TraceIndex index) throws IOException, JSONException {
+        this.data = data;
+        this.mapping = mapping;
+        this.index = index;
+
+        // read header
+        final int header_len = this.data.getInt(0);
+        if (header_len < 0 || header_len > this.data.limit() - 4)
+            throw new IOException("Invalid trace header length: " + header_len);
+
+        final byte[] header_s = new byte[header_len];
+        final ByteBuffer header_view = this.data.duplicate();
+        header_view.position(4);
+        header_view.get(header_s);
+
+        final JSONObject header = new JSONObject(new String(header_s, "utf-8"));
+        this.stepIndex = header.getInt(HEADER_INDEX_KEY) - 1; // steps are 1-indexed in the trace
+        this.name = header.getString(HEADER_NAME_KEY);
+        this.key_frame = header.getInt(HEADER_KEYFRAME_KEY);
+
+        final int n_frames = header.getInt(HEADER_NFRAMES_KEY);
+        if (n_frames != index.getNumFrames())
+            throw new IOException("Trace header announces " + n_frames
+                    + " frames, but index contains " + index.getNumFrames());
+
+        // slice out all the frames once, so that handing them out later doesn't allocate
+        // slicing doesn't touch the data, so this doesn't page in the mapping either
+        this.frames = new ByteBuffer[n_frames];
+        for (int i = 0; i < n_frames; i++)
+            this.frames[i] = slice(this.data, index.getOffset(i), index.getLength(i));
+    }
+
+    /**
+     * Maps a trace file into memory and parses its header.
+     * <p>
+     * Frame offsets are taken from the sidecar index of the trace if it exists and is valid,
+     * otherwise they are recovered by walking through the mapped trace.
+     *
+     * @param trace_file Step trace file.
+     * @return A StepTrace backed by the memory mapping of the file.
+     */
+    public static StepTrace map(@NonNull File trace_file) throws IOException, JSONException {
+        // stat before mapping, so that a trace replaced in between never matches an old index
+        final long trace_mtime = trace_file.lastModified();
+        final MappedByteBuffer mapping;
+        try (
+                final FileInputStream f_in = new FileInputStream(trace_file);
+                final FileChannel channel = f_in.getChannel()
+        ) {
+            // the mapping stays valid after the channel is closed
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        final File index_file = TraceIndex.indexFileFor(trace_file);
+        if (index_file.exists()) {
+            try {
+                final TraceIndex index = TraceIndex.read(index_file);
+                if (index.matches(mapping.capacity(), trace_mtime))
+                    return new StepTrace(mapping, mapping, index);
+            } catch (IOException ignored) {
+                // stale or corrupt index, fall back to walking the trace
+            }
+        }
+
+        return new StepTrace(mapping, mapping, TraceIndex.build(mapping));
+    }
+
+    /**
+     * Pages in the whole trace if it was mapped from its own file, so that playing it back
+     * afterwards doesn't block on the storage device. Traces copied into memory or read from an
+     * archive are left as is.
+     */
+    public void warmUp() {
+        if (this.mapping != null)
+            this.mapping.load();
+    }
+
+    /**
+     * Copies this trace into memory, so that playing back the copy never touches storage.
+     *
+     * @return A copy of this trace backed by a direct buffer.
+     */
+    StepTrace copyToMemory() throws IOException, JSONException {
+        final ByteBuffer src = this.data.duplicate();
+        src.rewind();
+
+        final ByteBuffer copy = ByteBuffer.allocateDirect(src.remaining());
+        copy.put(src);
+        copy.flip();
+        return new StepTrace(copy.asReadOnlyBuffer(), this.index);
+    }
+
+    /**
+     * @return Size in bytes of the data backing this trace.
+     */
+    public int getSize() {
+        return this.data.limit();
+    }
+
+    private static ByteBuffer slice(ByteBuffer src, int offset, int length) {
+        final ByteBuffer view = src.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    ByteBuffer getData() {
+        return this.data;
+    }
+
+    TraceIndex getIndex() {
+        return this.index;
+    }
+
+    public ByteBuffer getFrame(int index) {
+        return this.frames[index];
+    }
+
+    public int getNumFrames() {
+        return this.frames.length;
+    }
+
+    public int getStepIndex() {
+        return this.stepIndex;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public int getKeyFrame() {
+        return this.key_frame;
+    }
+}
@@ -27,6 +27,7 @@ public class SynchronizedBuffer<T> {
 
     private boolean updated;
     private T data;
+    private volatile Runnable push_listener;
 
     public SynchronizedBuffer() {
         this.updated = false;
@@ -35,13 +36,64 @@ public class SynchronizedBuffer<T> {
         this.upd_cond = this.lock.newCondition();
     }
 
-    void push(T new_data) {
+    /**
+     * Pushes new data into the buffer, overwriting the previous data.
+     *
+     * @param new_data New data.
+     * @return The overwritten data if it was never popped, null otherwise.
+     */
+    T push(T new_data) {
         this.lock.lock();
         try {
             // overwrite old data
+            final T dropped = this.updated ? this.data : null;
             this.data = new_data;
             this.updated = true;
             this.upd_cond.signalAll();
+            return dropped;
+        } finally {
+            this.lock.unlock();
+
+            final Runnable listener = this.push_listener;
+            if (listener != null)
+                listener.run();
+        }
+    }
+
+    /**
+     * Sets a listener to be notified, on the pushing thread, after every push.
+     * This allows consumers which can't block on {@link #pop()} to wait for data some other way.
+     *
+     * @param listener Listener, or null to remove it.
+     */
+    public void setPushListener(Runnable listener) {
+        this.push_listener = listener;
+    }
+
+    /**
+     * @return Whether there's data which hasn't been popped yet.
+     */
+    public boolean hasNewData() {
+        this.lock.lock();
+        try {
+            return this.updated;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Non-blocking version of {@link #pop()}.
+     *
+     * @return New data if there is any, null otherwise.
+     */
+    public T poll() {
+        this.lock.lock();
+        try {
+            if (!this.updated)
+                return null;
+            this.updated = false;
+            return data;
         } finally {
             this.lock.unlock();
         }
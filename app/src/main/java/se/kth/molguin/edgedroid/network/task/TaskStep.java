@@ -17,109 +17,89 @@
 package se.kth.molguin.edgedroid.network.task;
 
 import android.arch.lifecycle.MutableLiveData;
-import android.util.Log;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.DataInputStream;
-import java.io.IOException;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReentrantLock;
 
 import se.kth.molguin.edgedroid.IntegratedAsyncLog;
-
-import static java.lang.System.exit;
+import se.kth.molguin.edgedroid.synchronization.INTPSync;
 
 public class TaskStep {
 
-    private static final String HEADER_NAME_KEY = "name";
-    private static final String HEADER_INDEX_KEY = "index";
-    private static final String HEADER_NFRAMES_KEY = "num_frames";
-    private static final String HEADER_KEYFRAME_KEY = "key_frame";
     private static final String LOG_TAG = "TaskStep";
 
-    //    private static final Object lock = new Object();
-    private final ReentrantLock rlock;
-    private final Timer pushTimer;
-    private final TimerTask pushTask;
-    private final LinkedBlockingQueue<byte[]> replay_buffer;
+    private final FrameClock clock;
+    private final int replay_start;
     private final int max_replay_count;
     private final int fps;
-    private final DataInputStream trace_in;
-    private final SynchronizedBuffer<byte[]> frame_buffer;
+    private final StepTrace trace;
+    private final SynchronizedBuffer<VideoFrame> frame_buffer;
+    private final FramePool frame_pool;
     private final AtomicBoolean running_flag;
     private final IntegratedAsyncLog log;
-    private final MutableLiveData<byte[]> rtframe_feed;
-
-    private int stepIndex;
-    private String name;
-    private int N_frames;
-    private int key_frame;
-    private int loaded_frames;
-    private byte[] next_frame;
+    private final INTPSync ntp;
+    private final MutableLiveData<ByteBuffer> rtframe_feed;
+
+    private final int stepIndex;
+    private final int N_frames;
+
+    // playback state, only ever touched by the pusher thread
+    // replays loop over the window [replay_start, N_frames) of frame indices, so they need
+    // neither a separate buffer nor any locking
+    private int next_frame_idx;
+    private int next_frame;
     private boolean replay;
-    private int current_replay_count;
 
+    // counters are written by the pusher thread only, but may be read from any thread
+    private volatile int pushed_frames;
+    private volatile int replay_passes;
+    private volatile int current_replay_count;
 
-    public TaskStep(final DataInputStream trace_in,
-                    final SynchronizedBuffer<byte[]> frame_buffer,
-                    final MutableLiveData<byte[]> rtframe_feed,
+
+    public TaskStep(final StepTrace trace,
+                    final SynchronizedBuffer<VideoFrame> frame_buffer,
+                    final FramePool frame_pool,
+                    final MutableLiveData<ByteBuffer> rtframe_feed,
                     final IntegratedAsyncLog log,
+                    final INTPSync ntp,
+                    final FrameScheduler frame_scheduler,
+                    final FrameTiming frame_timing,
+                    FrameClock.MissedTickPolicy missed_frame_policy,
                     int fps, int rewind_seconds, int max_replays) {
 
         this.log = log;
+        this.ntp = ntp;
         this.rtframe_feed = rtframe_feed;
         this.running_flag = new AtomicBoolean(false);
-        this.rlock = new ReentrantLock();
         this.frame_buffer = frame_buffer;
-        this.loaded_frames = 0;
+        this.frame_pool = frame_pool;
+        this.next_frame_idx = 0;
 
         this.fps = fps;
-        this.trace_in = trace_in;
+        this.trace = trace;
+        this.stepIndex = trace.getStepIndex();
+        this.N_frames = trace.getNumFrames();
 
         int replay_capacity = fps * rewind_seconds;
 
-        this.replay_buffer = new LinkedBlockingQueue<>(replay_capacity);
+        // on replay we loop over the last replay_capacity frames of the step
+        this.replay_start = Math.max(0, this.N_frames - replay_capacity);
         this.max_replay_count = replay_capacity * max_replays;
+        this.pushed_frames = 0;
+        this.replay_passes = 0;
         this.current_replay_count = 0;
 
         this.replay = false;
 
-        try {
-            // read header
-            int header_len = trace_in.readInt();
-            byte[] header_s = new byte[header_len];
-            trace_in.read(header_s);
-
-            JSONObject header = new JSONObject(new String(header_s, "utf-8"));
-
-            this.stepIndex = header.getInt(HEADER_INDEX_KEY) - 1; // steps are 1-indexed in the trace
-            this.name = header.getString(HEADER_NAME_KEY);
-            this.N_frames = header.getInt(HEADER_NFRAMES_KEY);
-            this.key_frame = header.getInt(HEADER_KEYFRAME_KEY);
+        // pre-load next frame
+        this.preloadNextFrame();
 
-            //this.log_tag = "Step" + stepIndex;
-
-            // pre-load next frame
-            this.preloadNextFrame();
-
-        } catch (IOException | JSONException e) {
-            // should never happen
-            Log.e(LOG_TAG, "Exception!", e);
-            exit(-1);
-        }
-
-        this.pushTimer = new Timer();
-        this.pushTask = new TimerTask() {
+        this.clock = new FrameClock(frame_scheduler, fps, missed_frame_policy, frame_timing, new Runnable() {
             @Override
             public void run() {
                 TaskStep.this.pushFrame();
             }
-        };
+        });
     }
 
     private void preloadNextFrame() {
@@ -131,41 +111,43 @@ public class TaskStep {
                 this.log.w(LOG_TAG, "Aborting on Step " + this.stepIndex);
                 this.stop();
             }
-            this.next_frame = this.replay_buffer.poll();
-        } else {
-            try {
-                int frame_len = this.trace_in.readInt();
-                this.next_frame = new byte[frame_len];
-
-                this.trace_in.read(this.next_frame);
-                this.loaded_frames++;
-
-                // replay if we reach end of step
-                if (this.loaded_frames >= this.N_frames) {
-                    this.log.i(LOG_TAG, "Replaying step " + this.stepIndex);
-                    this.replay = true;
-                }
-            } catch (IOException e) {
-                this.log.e(LOG_TAG, "Exception!", e);
-                exit(-1);
+
+            // rewind to the start of the replay window every time we reach the end of the step
+            if (this.next_frame_idx >= this.N_frames) {
+                this.next_frame_idx = this.replay_start;
+                this.replay_passes++;
             }
         }
+
+        // frames are slices of the mapped trace, so we only need to keep track of indices
+        this.next_frame = this.next_frame_idx;
+        this.next_frame_idx++;
+
+        // replay if we reach end of step
+        if (!this.replay && this.next_frame_idx >= this.N_frames) {
+            this.log.i(LOG_TAG, "Replaying step " + this.stepIndex);
+            this.replay = true;
+        }
     }
 
     private void pushFrame() {
         // push new frames
+        // only ever called from the pusher thread
         if (this.running_flag.get()) {
-            this.rlock.lock();
-            try {
-
-                this.frame_buffer.push(this.next_frame);
-                this.rtframe_feed.postValue(this.next_frame);
-                while (!this.replay_buffer.offer(this.next_frame))
-                    this.replay_buffer.poll();
-                this.preloadNextFrame();
-            } finally {
-                this.rlock.unlock();
-            }
+            final VideoFrame frame = this.frame_pool.acquire();
+            frame.set(this.trace, this.next_frame);
+            // stamp the frame with its emulated capture time, i.e. now
+            frame.setTimestamp(this.ntp.currentTimeMillis());
+
+            // the buffer takes over our reference; if the previous frame was never sent, we're
+            // the last ones holding it
+            final VideoFrame dropped = this.frame_buffer.push(frame);
+            if (dropped != null)
+                dropped.release();
+
+            this.rtframe_feed.postValue(this.trace.getFrame(this.next_frame));
+            this.pushed_frames++;
+            this.preloadNextFrame();
         }
     }
 
@@ -173,25 +155,38 @@ public class TaskStep {
     public void stop() {
         //Log.i(log_tag, "Stopping...");
         this.running_flag.set(false);
-        this.pushTask.cancel();
-        this.pushTimer.cancel();
-
-
-        try {
-            this.trace_in.close();
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Error closing file.", e);
-        }
+        this.clock.stop();
     }
 
     public void start() {
-        // schedule to push frames @ 15 FPS (period: 66.6666666 = 67 ms)
+        // push frames @ fps (e.g. 15 FPS -> period: 66.6666666 ms, no rounding)
         if (!this.running_flag.getAndSet(true))
             //Log.i(log_tag, "Starting...");
-            this.pushTimer.scheduleAtFixedRate(this.pushTask, 0, (long) Math.ceil(1000.0 / this.fps));
+            this.clock.start();
     }
 
     public int getStepIndex() {
         return stepIndex;
     }
+
+    /**
+     * @return Total number of frames pushed by this step, including replayed frames.
+     */
+    public int getPushedFrames() {
+        return this.pushed_frames;
+    }
+
+    /**
+     * @return Number of times playback has looped back over the replay window of this step.
+     */
+    public int getReplayPasses() {
+        return this.replay_passes;
+    }
+
+    /**
+     * @return Number of frames loaded from the replay window of this step.
+     */
+    public int getReplayedFrames() {
+        return this.current_replay_count;
+    }
 }
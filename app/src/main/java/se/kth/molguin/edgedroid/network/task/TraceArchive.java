@@ -0,0 +1,254 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.kth.molguin.edgedroid.network.task;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONException;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * Single-file archive holding the traces for all the steps of a task.
+ * <p>
+ * The archive starts with a header indexing every step (offset, length, frame count, key frame
+ * and MD5 checksum), followed by the frame index of every step and finally the step traces
+ * themselves, stored verbatim. The whole archive is mapped into memory once, so it only takes a
+ * single file open to play back an entire task, and the checksums of all steps can be verified
+ * by just reading the header.
+ */
+public class TraceArchive implements TraceSource {
+
+    private static final int MAGIC = 0x45445441; // "EDTA"
+    private static final int VERSION = 1;
+    private static final int CHECKSUM_LEN = 32; // hex-encoded MD5
+    private static final Charset CHECKSUM_CHARSET = Charset.forName("US-ASCII");
+
+    private final ByteBuffer data;
+    private final long[] step_offsets;
+    private final int[] step_lengths;
+    private final int[] key_frames;
+    private final String[] checksums;
+    private final TraceIndex[] indexes;
+    private final StepTrace[] steps;
+
+    private TraceArchive(@NonNull ByteBuffer data) throws IOException {
+        this.data = data;
+
+        final ByteBuffer header = data.duplicate();
+        try {
+            if (header.getInt() != MAGIC || header.getInt() != VERSION)
+                throw new IOException("Invalid trace archive.");
+
+            final int n_steps = header.getInt();
+            if (n_steps < 0)
+                throw new IOException("Invalid trace archive.");
+
+            this.step_offsets = new long[n_steps];
+            this.step_lengths = new int[n_steps];
+            this.key_frames = new int[n_steps];
+            this.checksums = new String[n_steps];
+            this.indexes = new TraceIndex[n_steps];
+            this.steps = new StepTrace[n_steps];
+
+            final int[] frame_counts = new int[n_steps];
+            final byte[] checksum = new byte[CHECKSUM_LEN];
+            for (int i = 0; i < n_steps; i++) {
+                this.step_offsets[i] = header.getLong();
+                this.step_lengths[i] = header.getInt();
+                frame_counts[i] = header.getInt();
+                this.key_frames[i] = header.getInt();
+                header.get(checksum);
+                this.checksums[i] = new String(checksum, CHECKSUM_CHARSET);
+
+                if (this.step_offsets[i] < 0 || this.step_lengths[i] < 0 || frame_counts[i] < 0
+                        || this.step_offsets[i] + this.step_lengths[i] > data.limit())
+                    throw new IOException("Invalid entry for step " + (i + 1) + " in trace archive.");
+            }
+
+            for (int i = 0; i < n_steps; i++) {
+                final int[] offsets = new int[frame_counts[i]];
+                final int[] lengths = new int[frame_counts[i]];
+                for (int j = 0; j < frame_counts[i]; j++) {
+                    offsets[j] = header.getInt();
+                    lengths[j] = header.getInt();
+                }
+                this.indexes[i] = new TraceIndex(this.step_lengths[i], offsets, lengths);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Trace archive is truncated.");
+        }
+    }
+
+    /**
+     * Maps an archive into memory and parses its header.
+     *
+     * @param archive_file Archive file.
+     * @return The mapped archive.
+     */
+    public static TraceArchive map(@NonNull File archive_file) throws IOException {
+        try (
+                final FileInputStream f_in = new FileInputStream(archive_file);
+                final FileChannel channel = f_in.getChannel()
+        ) {
+            return new TraceArchive(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Packs a number of step traces into an archive.
+     * <p>
+     * The archive is first written to a temporary file and then moved into place, so that an
+     * interrupted pack never leaves a truncated archive behind.
+     *
+     * @param archive_file Destination file.
+     * @param sources      Sources for the traces of each step, in order.
+     * @param checksums    Hex-encoded MD5 checksums of each step trace, in order.
+     */
+    public static void pack(@NonNull File archive_file,
+                            @NonNull TraceSource[] sources,
+                            @NonNull String[] checksums) throws IOException, JSONException {
+        final int n_steps = sources.length;
+        final StepTrace[] traces = new StepTrace[n_steps];
+        for (int i = 0; i < n_steps; i++)
+            traces[i] = sources[i].getStep(i);
+
+        // header size: magic, version, step count, step entries and frame indexes
+        long offset = 12;
+        for (StepTrace trace : traces)
+            offset += 20 + CHECKSUM_LEN + 8L * trace.getNumFrames();
+
+        final File tmp_file = new File(archive_file.getPath() + ".tmp");
+        try (FileOutputStream f_out = new FileOutputStream(tmp_file)) {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(f_out));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(n_steps);
+
+            for (int i = 0; i < n_steps; i++) {
+                final byte[] checksum = checksums[i].getBytes(CHECKSUM_CHARSET);
+                if (checksum.length != CHECKSUM_LEN)
+                    throw new IOException("Invalid checksum for step " + (i + 1) + ": " + checksums[i]);
+
+                out.writeLong(offset);
+                out.writeInt(traces[i].getData().limit());
+                out.writeInt(traces[i].getNumFrames());
+                out.writeInt(traces[i].getKeyFrame());
+                out.write(checksum);
+                offset += traces[i].getData().limit();
+            }
+
+            for (StepTrace trace : traces) {
+                final TraceIndex index = trace.getIndex();
+                for (int j = 0; j < index.getNumFrames(); j++) {
+                    out.writeInt(index.getOffset(j));
+                    out.writeInt(index.getLength(j));
+                }
+            }
+            out.flush();
+
+            // step traces are copied verbatim straight from their mappings
+            final WritableByteChannel channel = f_out.getChannel();
+            for (StepTrace trace : traces) {
+                final ByteBuffer step_data = trace.getData().duplicate();
+                step_data.rewind();
+                while (step_data.hasRemaining())
+                    channel.write(step_data);
+            }
+            f_out.getFD().sync();
+        }
+
+        if (!tmp_file.renameTo(archive_file))
+            throw new IOException("Could not move trace archive into place.");
+    }
+
+    public int getNumSteps() {
+        return this.checksums.length;
+    }
+
+    /**
+     * @param index 0-based index of the step.
+     * @return Hex-encoded MD5 checksum of the step trace, or null if the step is not contained
+     * in the archive.
+     */
+    @Nullable
+    public String getChecksum(int index) {
+        if (index < 0 || index >= this.checksums.length)
+            return null;
+        return this.checksums[index];
+    }
+
+    /**
+     * Hashes the trace of a step as actually stored in the archive, so that it can be verified
+     * without trusting the checksum the archive reports about itself.
+     *
+     * @param index 0-based index of the step.
+     * @return Hex-encoded MD5 checksum of the archived step trace.
+     */
+    public String computeChecksum(int index) throws IOException {
+        if (index < 0 || index >= this.checksums.length)
+            throw new IOException("Step " + (index + 1) + " is not contained in the trace archive.");
+
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 not available.", e);
+        }
+
+        final ByteBuffer view = this.data.duplicate();
+        view.position((int) this.step_offsets[index]);
+        view.limit((int) this.step_offsets[index] + this.step_lengths[index]);
+        md.update(view);
+
+        return String.format("%032x", new BigInteger(1, md.digest())).toUpperCase(Locale.ENGLISH);
+    }
+
+    @Override
+    public synchronized StepTrace getStep(int index) throws IOException, JSONException {
+        if (index < 0 || index >= this.steps.length)
+            throw new IOException("Step " + (index + 1) + " is not contained in the trace archive.");
+
+        // traces are immutable, so build them once and share them between runs
+        if (this.steps[index] == null) {
+            final ByteBuffer view = this.data.duplicate();
+            view.position((int) this.step_offsets[index]);
+            view.limit((int) this.step_offsets[index] + this.step_lengths[index]);
+
+            final StepTrace trace = new StepTrace(view.slice().asReadOnlyBuffer(), this.indexes[index]);
+            if (trace.getKeyFrame() != this.key_frames[index])
+                throw new IOException("Archive entry for step " + (index + 1) + " does not match its trace.");
+            this.steps[index] = trace;
+        }
+        return this.steps[index];
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.kth.molguin.edgedroid.network.task;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Offset/length index of the frames in a step trace.
+ * <p>
+ * Indexes are stored as small sidecar files next to their trace (step_N.trace.idx) so that
+ * traces can be opened without walking through every length prefix in them, and so that any
+ * frame in a trace can be located in constant time. Sidecar files record the length and the
+ * modification time of the trace they were built for, so that they are not reused for a trace
+ * which has since been replaced.
+ */
+public class TraceIndex {
+
+    public static final String SUFFIX = ".idx";
+
+    private static final int MAGIC = 0x45444958; // "EDIX"
+    private static final int VERSION = 2;
+
+    private final long trace_length;
+    private final long trace_mtime; // only known for indexes read from a sidecar file
+    private final int[] offsets;
+    private final int[] lengths;
+
+    /**
+     * @throws IOException If any of the frames lies outside of the trace, e.g. because the index
+     *                     was read from a corrupt file.
+     */
+    TraceIndex(long trace_length, int[] offsets, int[] lengths) throws IOException {
+        this(trace_length, 0, offsets, lengths);
+    }
+
+    private TraceIndex(long trace_length, long trace_mtime, int[] offsets, int[] lengths) throws IOException {
+        if (offsets.length != lengths.length)
+            throw new IOException("Mismatched frame offsets and lengths in trace index.");
+
+        for (int i = 0; i < offsets.length; i++) {
+            if (offsets[i] < 0 || lengths[i] < 0 || (long) offsets[i] + lengths[i] > trace_length)
+                throw new IOException("Frame " + i + " out of bounds in trace index: offset "
+                        + offsets[i] + ", length " + lengths[i] + ", trace length " + trace_length);
+        }
+
+        this.trace_length = trace_length;
+        this.trace_mtime = trace_mtime;
+        this.offsets = offsets;
+        this.lengths = lengths;
+    }
+
+    /**
+     * @param trace_file Step trace file.
+     * @return The sidecar index file corresponding to the trace.
+     */
+    public static File indexFileFor(@NonNull File trace_file) {
+        return new File(trace_file.getPath() + SUFFIX);
+    }
+
+    /**
+     * Builds an index by walking through the length prefixes in a trace.
+     *
+     * @param trace Complete contents of a step trace. Its position is not modified.
+     * @return The index of all the frames in the trace.
+     */
+    public static TraceIndex build(@NonNull ByteBuffer trace) throws IOException {
+        final int base = trace.position();
+        final int limit = trace.limit();
+
+        if (limit - base < 4)
+            throw new IOException("Trace too short to contain a header.");
+
+        final int header_len = trace.getInt(base);
+        if (header_len < 0 || header_len > limit - base - 4)
+            throw new IOException("Invalid trace header length: " + header_len);
+
+        // first pass counts the frames, second pass fills in the arrays
+        int n_frames = 0;
+        int offset = base + 4 + header_len;
+        while (offset < limit) {
+            if (offset + 4 > limit)
+                throw new IOException("Trailing bytes at end of trace.");
+
+            final int frame_len = trace.getInt(offset);
+            if (frame_len < 0 || frame_len > limit - offset - 4)
+                throw new IOException("Invalid length for frame " + n_frames + ": " + frame_len);
+
+            offset += 4 + frame_len;
+            n_frames++;
+        }
+
+        final int[] offsets = new int[n_frames];
+        final int[] lengths = new int[n_frames];
+        offset = base + 4 + header_len;
+        for (int i = 0; i < n_frames; i++) {
+            lengths[i] = trace.getInt(offset);
+            offsets[i] = offset + 4 - base;
+            offset += 4 + lengths[i];
+        }
+
+        return new TraceIndex(limit - base, offsets, lengths);
+    }
+
+    public static TraceIndex build(@NonNull byte[] trace) throws IOException {
+        return build(ByteBuffer.wrap(trace));
+    }
+
+    /**
+     * Reads an index from a sidecar file.
+     *
+     * @param index_file Index file, as returned by {@link #indexFileFor(File)}.
+     * @return The stored index.
+     */
+    public static TraceIndex read(@NonNull File index_file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(index_file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Invalid trace index: " + index_file.getName());
+
+            final long trace_length = in.readLong();
+            final long trace_mtime = in.readLong();
+            final int n_frames = in.readInt();
+            if (n_frames < 0)
+                throw new IOException("Invalid trace index: " + index_file.getName());
+
+            final int[] offsets = new int[n_frames];
+            final int[] lengths = new int[n_frames];
+            for (int i = 0; i < n_frames; i++) {
+                offsets[i] = in.readInt();
+                lengths[i] = in.readInt();
+            }
+
+            return new TraceIndex(trace_length, trace_mtime, offsets, lengths);
+        }
+    }
+
+    /**
+     * Stores this index in a sidecar file.
+     *
+     * @param index_file  Index file, as returned by {@link #indexFileFor(File)}.
+     * @param trace_mtime Modification time of the trace file, as returned by
+     *                    {@link File#lastModified()}.
+     */
+    public void write(@NonNull File index_file, long trace_mtime) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(index_file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(this.trace_length);
+            out.writeLong(trace_mtime);
+            out.writeInt(this.offsets.length);
+            for (int i = 0; i < this.offsets.length; i++) {
+                out.writeInt(this.offsets[i]);
+                out.writeInt(this.lengths[i]);
+            }
+        }
+    }
+
+    /**
+     * @param trace_length Length in bytes of a trace file.
+     * @param trace_mtime  Modification time of the trace file, as returned by
+     *                     {@link File#lastModified()}.
+     * @return Whether this index was stored for the trace file as it is now.
+     */
+    public boolean matches(long trace_length, long trace_mtime) {
+        return this.trace_length == trace_length && this.trace_mtime == trace_mtime;
+    }
+
+    long getTraceLength() {
+        return this.trace_length;
+    }
+
+    public int getNumFrames() {
+        return this.offsets.length;
+    }
+
+    public int getOffset(int frame) {
+        return this.offsets[frame];
+    }
+
+    public int getLength(int frame) {
+        return this.lengths[frame];
+    }
+}
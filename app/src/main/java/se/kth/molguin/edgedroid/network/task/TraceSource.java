@@ -0,0 +1,33 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.kth.molguin.edgedroid.network.task;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+
+/**
+ * Provides the traces for the steps of a task.
+ */
+public interface TraceSource {
+
+    /**
+     * @param index 0-based index of the step.
+     * @return The trace for the step.
+     */
+    StepTrace getStep(int index) throws IOException, JSONException;
+}
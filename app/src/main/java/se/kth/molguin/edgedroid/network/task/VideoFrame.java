@@ -16,25 +16,115 @@
 
 package se.kth.molguin.edgedroid.network.task;
 
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference-counted carrier for a single frame on its way from a TaskStep to the backend.
+ * <p>
+ * VideoFrames are recycled through a {@link FramePool}: a frame is obtained with
+ * {@link FramePool#acquire()}, and every holder calls {@link #release()} once it's done with it.
+ * The frame returns to its pool once the last reference is released.
+ */
 public class VideoFrame {
+    private final FramePool pool;
+    private final AtomicInteger ref_count;
+
     private int id;
-    private byte[] frame_data;
+    private ByteBuffer frame_data;
     private double timestamp;
 
-    VideoFrame(int id, byte[] data, double timestamp) {
+    // private view over the trace data, re-pointed to each new frame to avoid allocating
+    private ByteBuffer source;
+    private ByteBuffer view;
+
+    VideoFrame(@NonNull FramePool pool) {
+        this.pool = pool;
+        this.ref_count = new AtomicInteger(0);
+        this.id = -1;
+        this.timestamp = -1;
+    }
+
+    /**
+     * Points this frame at a frame in a step trace.
+     *
+     * @param trace       Step trace.
+     * @param frame_index Index of the frame in the trace.
+     */
+    void set(@NonNull StepTrace trace, int frame_index) {
+        final ByteBuffer data = trace.getData();
+        if (this.source != data) {
+            // only happens the first time this frame is used for a step
+            this.source = data;
+            this.view = data.duplicate();
+        }
+
+        final TraceIndex index = trace.getIndex();
+        final int offset = index.getOffset(frame_index);
+        this.view.clear();
+        this.view.limit(offset + index.getLength(frame_index));
+        this.view.position(offset);
+
+        this.frame_data = trace.getFrame(frame_index);
+    }
+
+    void retain() {
+        this.ref_count.incrementAndGet();
+    }
+
+    /**
+     * Releases a reference to this frame. The frame must not be used by the caller afterwards.
+     */
+    public void release() {
+        final int refs = this.ref_count.decrementAndGet();
+        if (refs == 0)
+            this.pool.recycle(this);
+        else if (refs < 0)
+            throw new IllegalStateException("VideoFrame released too many times!");
+    }
+
+    void clear() {
+        this.id = -1;
+        this.timestamp = -1;
+        this.frame_data = null;
+    }
+
+    public void setId(int id) {
         this.id = id;
-        this.frame_data = data;
-        this.timestamp = timestamp;
     }
 
     public int getId() {
         return id;
     }
 
-    public byte[] getFrameData() {
+    /**
+     * @return Shared read-only slice of the trace holding this frame, which stays valid after
+     * the frame is released. Suitable for handing out to the UI.
+     */
+    public ByteBuffer getFrameData() {
         return frame_data;
     }
 
+    /**
+     * @return Private view of the frame data, positioned at the start of the frame. It may be
+     * consumed freely by the current holder of the frame, but must not escape it.
+     */
+    public ByteBuffer getData() {
+        return this.view;
+    }
+
+    /**
+     * @param timestamp Emulated capture time of the frame, in milliseconds since the epoch.
+     */
+    void setTimestamp(double timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return Emulated capture time of the frame, in milliseconds since the epoch.
+     */
     public double getTimestamp() {
         return timestamp;
     }
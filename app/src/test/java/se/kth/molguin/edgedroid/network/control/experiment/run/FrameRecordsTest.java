@@ -0,0 +1,66 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.kth.molguin.edgedroid.network.control.experiment.run;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the columnar layout of {@link FrameRecords}, as uploaded with the columnar stats
+ * encoding.
+ */
+public class FrameRecordsTest {
+
+    private static final int NUM_FRAMES = 300; // enough to grow the store a few times
+
+    @Test
+    public void writeColumns() throws IOException {
+        final FrameRecords frames = new FrameRecords(1);
+        for (int i = 0; i < NUM_FRAMES; i++)
+            frames.add(i + 1, i + 0.5, i + 1.5, i + 2.5, i % 3 == 0, i + 3.5, i + 4.5, i / 10);
+
+        // only the first records are written, as when records arrive after taking a snapshot
+        final int count = NUM_FRAMES - 10;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        frames.writeColumns(out, count);
+        out.flush();
+        assertEquals(FrameRecords.getColumnsSize(count), bytes.size());
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(count, in.readInt());
+        for (int i = 0; i < count; i++)
+            assertEquals(i + 1, in.readInt());
+
+        final double[] offsets = {0.5, 1.5, 2.5, 3.5, 4.5};
+        for (double offset : offsets)
+            for (int i = 0; i < count; i++)
+                assertEquals(i + offset, in.readDouble(), 0);
+
+        for (int i = 0; i < count; i++)
+            assertEquals(i / 10, in.readInt());
+        for (int i = 0; i < count; i++)
+            assertEquals(i % 3 == 0 ? 1 : 0, in.readByte());
+        assertEquals(0, in.available());
+    }
+}
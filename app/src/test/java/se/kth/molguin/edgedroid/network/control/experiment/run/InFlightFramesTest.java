@@ -0,0 +1,83 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.kth.molguin.edgedroid.network.control.experiment.run;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link InFlightFrames} against a {@link HashMap} under the access pattern of a run:
+ * frames are added with increasing IDs and removed mostly, but not always, in order, with some
+ * never coming back at all.
+ */
+public class InFlightFramesTest {
+
+    private static final int NUM_FRAMES = 100000;
+
+    @Test
+    public void matchesHashMap() {
+        final Random random = new Random(0x5eed);
+        final InFlightFrames in_flight = new InFlightFrames(4);
+        final Map<Integer, Double> reference = new HashMap<>();
+
+        int next_id = 1;
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            if (reference.isEmpty() || random.nextInt(3) > 0) {
+                final int id = next_id++;
+                in_flight.put(id, id * 2.0, id * 3.0);
+                reference.put(id, id * 2.0);
+            } else {
+                // results arrive within a window of recent frames; older ones stay lost
+                final int id = Math.max(1, next_id - 1 - random.nextInt(8));
+                final int slot = in_flight.find(id);
+                final Double expected = reference.remove(id);
+
+                if (expected == null)
+                    assertEquals(-1, slot);
+                else {
+                    assertTrue(slot >= 0);
+                    assertEquals(expected, in_flight.getSent(slot), 0);
+                    assertEquals(id * 3.0, in_flight.getCaptured(slot), 0);
+                    in_flight.removeAt(slot);
+                }
+            }
+            assertEquals(reference.size(), in_flight.size());
+        }
+
+        for (Map.Entry<Integer, Double> e : reference.entrySet()) {
+            final int slot = in_flight.find(e.getKey());
+            assertTrue(slot >= 0);
+            assertEquals(e.getValue(), in_flight.getSent(slot), 0);
+        }
+    }
+
+    @Test
+    public void putReplacesExisting() {
+        final InFlightFrames in_flight = new InFlightFrames(4);
+        in_flight.put(7, 1.0, 0.5);
+        in_flight.put(7, 2.0, 1.5);
+
+        assertEquals(1, in_flight.size());
+        assertEquals(2.0, in_flight.getSent(in_flight.find(7)), 0);
+        assertEquals(1.5, in_flight.getCaptured(in_flight.find(7)), 0);
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.kth.molguin.edgedroid.network.control.experiment.run;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import se.kth.molguin.edgedroid.network.control.ControlConst;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link StatsWriter} produces the same document as org.json (up to the order of the
+ * keys), and that the counting pass agrees with what actually gets written.
+ */
+public class StatsWriterTest {
+
+    private static final int NUM_FRAMES = 1000;
+
+    @Test
+    public void matchesJSONObject() throws IOException, JSONException {
+        final FrameRecords frames = new FrameRecords(4);
+        for (int i = 0; i < NUM_FRAMES; i++)
+            frames.add(i + 1, 1000.0 + i, 1000.25 + i, 1030.5 + i, i % 7 == 0,
+                    i % 2 == 0 ? -1 : 1010.0 + i, i % 2 == 0 ? -1 : 1020.0 + i, i / 100);
+
+        final JSONObject summary = new JSONObject();
+        summary.put("name", "quoted \"run\"\n");
+        summary.put("count", 42);
+        summary.put("ratio", 0.125);
+        summary.put("nested", new JSONObject().put("ok", true));
+
+        final StatsWriter.Source source = new StatsWriter.Source() {
+            @Override
+            public void writeTo(StatsWriter writer) throws IOException, JSONException {
+                writer.beginObject();
+                writer.name("summary").beginObject().entries(summary).endObject();
+                writer.name("frames").beginArray();
+                for (int i = 0; i < frames.size(); i++)
+                    frames.write(i, writer);
+                writer.endArray();
+                writer.name("empty").beginArray().endArray();
+                writer.endObject();
+            }
+        };
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final long length = StatsWriter.measure(source);
+        assertEquals(length, StatsWriter.write(source, out));
+        assertEquals(length, out.size());
+
+        // the order of keys in a JSONObject is unspecified, so compare the parsed documents
+        final JSONObject written = new JSONObject(new String(out.toByteArray(), "UTF-8"));
+
+        final JSONObject written_summary = written.getJSONObject("summary");
+        assertEquals(summary.getString("name"), written_summary.getString("name"));
+        assertEquals(summary.getInt("count"), written_summary.getInt("count"));
+        assertEquals(summary.getDouble("ratio"), written_summary.getDouble("ratio"), 0);
+        assertEquals(true, written_summary.getJSONObject("nested").getBoolean("ok"));
+
+        final JSONArray written_frames = written.getJSONArray("frames");
+        assertEquals(frames.size(), written_frames.length());
+        for (int i = 0; i < frames.size(); i++)
+            assertFrameEquals(frames.toJSON(i), written_frames.getJSONObject(i));
+
+        assertEquals(0, written.getJSONArray("empty").length());
+    }
+
+    private static void assertFrameEquals(JSONObject expected, JSONObject actual) throws JSONException {
+        assertEquals(expected.getInt(ControlConst.Stats.FRAMEFIELD_ID),
+                actual.getInt(ControlConst.Stats.FRAMEFIELD_ID));
+        assertEquals(expected.getBoolean(ControlConst.Stats.FRAMEFIELD_FEEDBACK),
+                actual.getBoolean(ControlConst.Stats.FRAMEFIELD_FEEDBACK));
+        assertEquals(expected.getInt(ControlConst.Stats.FRAMEFIELD_STATEIDX),
+                actual.getInt(ControlConst.Stats.FRAMEFIELD_STATEIDX));
+
+        final String[] timestamps = {
+                ControlConst.Stats.FRAMEFIELD_CAPTURED,
+                ControlConst.Stats.FRAMEFIELD_SENT,
+                ControlConst.Stats.FRAMEFIELD_RECV,
+                ControlConst.Stats.FRAMEFIELD_SERVERRECV,
+                ControlConst.Stats.FRAMEFIELD_SERVERSENT,
+        };
+        for (String field : timestamps)
+            assertEquals(field, expected.getDouble(field), actual.getDouble(field), 0);
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.kth.molguin.edgedroid.network.gabriel;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds RTTs and timestamps straight into {@link AimdTokenWindow} and checks the window it
+ * sets on its {@link TokenPool}.
+ */
+public class AimdTokenWindowTest {
+
+    private static final double TARGET_LATENCY = 100.0;
+    private static final int MAX_WINDOW = 10;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    @Test
+    public void growsByOneTokenPerWindow() {
+        final TokenPool pool = new TokenPool(1);
+        final AimdTokenWindow window = new AimdTokenWindow(pool, MAX_WINDOW, TARGET_LATENCY);
+        final long now = System.nanoTime();
+
+        int current = 1;
+        int updates = 0;
+        while (current < MAX_WINDOW) {
+            // RTTs at the target still count as on target
+            final double rtt = updates % 2 == 0 ? TARGET_LATENCY : TARGET_LATENCY / 2;
+            final int result = window.update(rtt, now);
+            updates++;
+            if (result < 0) {
+                assertTrue("Window " + current + " took too long to grow.", updates <= current + 1);
+                continue;
+            }
+
+            // roughly one full window of results per step, one token at a time
+            assertEquals(current + 1, result);
+            assertTrue("Window " + current + " grew too fast.", updates >= current);
+            assertEquals(result, pool.getWindow());
+            current = result;
+            updates = 0;
+        }
+
+        for (int i = 0; i < 10 * MAX_WINDOW; i++)
+            assertEquals(-1, window.update(TARGET_LATENCY / 2, now));
+        assertEquals(MAX_WINDOW, pool.getWindow());
+    }
+
+    @Test
+    public void halvesAtMostOncePerRTT() {
+        final TokenPool pool = new TokenPool(8);
+        final AimdTokenWindow window = new AimdTokenWindow(pool, MAX_WINDOW, TARGET_LATENCY);
+        final double rtt = 2 * TARGET_LATENCY;
+        final long rtt_nanos = (long) rtt * NANOS_PER_MILLI;
+        long now = System.nanoTime() + rtt_nanos;
+
+        assertEquals(4, window.update(rtt, now));
+        assertEquals(4, pool.getWindow());
+
+        // results of frames sent before the cut don't shrink the window again
+        assertEquals(-1, window.update(rtt, now + rtt_nanos / 2));
+        assertEquals(-1, window.update(rtt, now + rtt_nanos - 1));
+        assertEquals(4, pool.getWindow());
+
+        now += rtt_nanos;
+        assertEquals(2, window.update(rtt, now));
+        now += rtt_nanos;
+        assertEquals(1, window.update(rtt, now));
+
+        // never below a single token
+        for (int i = 0; i < 5; i++) {
+            now += rtt_nanos;
+            assertEquals(-1, window.update(rtt, now));
+        }
+        assertEquals(1, pool.getWindow());
+
+        // and back up once on target again
+        assertEquals(2, window.update(TARGET_LATENCY, now));
+        assertEquals(2, pool.getWindow());
+    }
+
+    @Test
+    public void ignoresMissingRTT() {
+        final TokenPool pool = new TokenPool(4);
+        final AimdTokenWindow window = new AimdTokenWindow(pool, MAX_WINDOW, TARGET_LATENCY);
+        assertEquals(-1, window.update(Double.NaN, System.nanoTime()));
+        assertEquals(4, pool.getWindow());
+    }
+}
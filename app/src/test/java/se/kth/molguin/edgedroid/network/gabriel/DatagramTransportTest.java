@@ -0,0 +1,219 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.kth.molguin.edgedroid.network.gabriel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Sends frames through {@link DatagramVideoWriter} to a stand-in backend on the loopback
+ * interface, and checks that {@link FrameReassembler} recovers the exact messages the TCP
+ * transport would have sent, and accounts for lost, reordered and stale datagrams.
+ */
+public class DatagramTransportTest {
+
+    private static final int RECEIVE_TIMEOUT_MS = 5000;
+
+    private DatagramChannel backend;
+    private DatagramChannel client;
+
+    @Before
+    public void setUp() throws IOException {
+        this.backend = DatagramChannel.open();
+        this.backend.socket().setReceiveBufferSize(4 * 1024 * 1024);
+        this.backend.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        this.backend.configureBlocking(false);
+
+        this.client = DatagramChannel.open();
+        this.client.connect(this.backend.getLocalAddress());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.client.close();
+        this.backend.close();
+    }
+
+    private static byte[] frame(int size, int seed) {
+        final byte[] frame = new byte[size];
+        new Random(seed).nextBytes(frame);
+        return frame;
+    }
+
+    private static byte[] header(int frame_id) {
+        final VideoHeaderEncoder encoder = new VideoHeaderEncoder();
+        encoder.encodeFrameHeader(frame_id);
+        final byte[] header = new byte[encoder.getLength()];
+        System.arraycopy(encoder.getBuffer(), 0, header, 0, header.length);
+        return header;
+    }
+
+    /**
+     * @return The message as it would have been written to the TCP video stream.
+     */
+    private static byte[] streamMessage(byte[] header, byte[] frame) {
+        final ByteBuffer message = ByteBuffer.allocate(8 + header.length + frame.length);
+        message.putInt(header.length).put(header).putInt(frame.length).put(frame);
+        return message.array();
+    }
+
+    /**
+     * Writes a frame, and collects all the datagrams the backend receives for it.
+     */
+    private List<ByteBuffer> send(DatagramVideoWriter writer, byte[] header, byte[] frame)
+            throws IOException, InterruptedException {
+        final long before = writer.getDatagramsSent();
+        writer.write(header, header.length, ByteBuffer.wrap(frame));
+        final long expected = writer.getDatagramsSent() - before;
+
+        final List<ByteBuffer> datagrams = new ArrayList<>();
+        final long deadline = System.currentTimeMillis() + RECEIVE_TIMEOUT_MS;
+        while (datagrams.size() < expected) {
+            final ByteBuffer datagram = ByteBuffer.allocate(DatagramVideoWriter.MAX_DATAGRAM_SIZE);
+            if (this.backend.receive(datagram) == null) {
+                if (System.currentTimeMillis() > deadline)
+                    throw new AssertionError("Timed out waiting for datagrams.");
+                Thread.sleep(1);
+                continue;
+            }
+            datagram.flip();
+            datagrams.add(datagram);
+        }
+        return datagrams;
+    }
+
+    @Test
+    public void loopbackRoundTrip() throws IOException, InterruptedException {
+        final DatagramVideoWriter writer = new DatagramVideoWriter(this.client, 0);
+        final FrameReassembler reassembler = new FrameReassembler();
+
+        // empty, single fragment, exactly one fragment, just over one fragment, typical, large
+        final int one_fragment = DatagramVideoWriter.MAX_FRAGMENT_PAYLOAD - 8 - header(1).length;
+        final int[] sizes = {0, 1, one_fragment, one_fragment + 1, 20000, 300000};
+
+        for (int i = 0; i < sizes.length; i++) {
+            final byte[] header = header(i + 1);
+            final byte[] frame = frame(sizes[i], i);
+
+            final List<ByteBuffer> datagrams = this.send(writer, header, frame);
+            for (int j = 0; j < datagrams.size() - 1; j++)
+                assertNull(reassembler.accept(datagrams.get(j)));
+
+            final byte[] message = reassembler.accept(datagrams.get(datagrams.size() - 1));
+            assertArrayEquals(streamMessage(header, frame), message);
+        }
+
+        assertEquals(sizes.length, writer.getMessagesSent());
+        assertEquals(sizes.length, reassembler.getCompletedMessages());
+        assertEquals(writer.getDatagramsSent(), reassembler.getDatagramsReceived());
+        assertEquals(0, reassembler.getLostDatagrams());
+        assertEquals(0, reassembler.getDroppedMessages());
+    }
+
+    @Test
+    public void reassemblesOutOfOrderFragments() throws IOException, InterruptedException {
+        final DatagramVideoWriter writer = new DatagramVideoWriter(this.client, 0);
+        final FrameReassembler reassembler = new FrameReassembler();
+        final byte[] header = header(1);
+        final byte[] frame = frame(50000, 1);
+
+        final List<ByteBuffer> datagrams = this.send(writer, header, frame);
+        Collections.shuffle(datagrams, new Random(42));
+
+        byte[] message = null;
+        for (ByteBuffer datagram : datagrams) {
+            assertNull(message);
+            message = reassembler.accept(datagram);
+        }
+
+        assertArrayEquals(streamMessage(header, frame), message);
+        assertEquals(0, reassembler.getLostDatagrams());
+    }
+
+    @Test
+    public void dropsIncompleteFrames() throws IOException, InterruptedException {
+        final DatagramVideoWriter writer = new DatagramVideoWriter(this.client, 0);
+        final FrameReassembler reassembler = new FrameReassembler();
+
+        final List<List<ByteBuffer>> frames = new ArrayList<>();
+        final List<byte[]> messages = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            final byte[] header = header(i);
+            final byte[] frame = frame(10000, i);
+            frames.add(this.send(writer, header, frame));
+            messages.add(streamMessage(header, frame));
+        }
+
+        // lose a fragment of the second frame
+        frames.get(1).remove(2);
+
+        for (int i = 0; i < frames.size(); i++) {
+            byte[] message = null;
+            for (ByteBuffer datagram : frames.get(i))
+                message = reassembler.accept(datagram);
+
+            if (i == 1)
+                assertNull(message);
+            else
+                assertArrayEquals(messages.get(i), message);
+        }
+
+        assertEquals(2, reassembler.getCompletedMessages());
+        assertEquals(1, reassembler.getDroppedMessages());
+        assertEquals(1, reassembler.getLostDatagrams());
+    }
+
+    @Test
+    public void discardsStaleEpochs() throws IOException, InterruptedException {
+        final FrameReassembler reassembler = new FrameReassembler();
+        final byte[] header = header(1);
+        final byte[] frame = frame(5000, 1);
+
+        byte[] message = null;
+        for (ByteBuffer datagram : this.send(new DatagramVideoWriter(this.client, 1), header, frame))
+            message = reassembler.accept(datagram);
+        assertNotNull(message);
+
+        // late datagrams from before the reset
+        final List<ByteBuffer> stale = this.send(new DatagramVideoWriter(this.client, 0), header, frame);
+        for (ByteBuffer datagram : stale)
+            assertNull(reassembler.accept(datagram));
+        assertEquals(stale.size(), reassembler.getStaleDatagrams());
+
+        // message numbers start over in the new epoch
+        message = null;
+        for (ByteBuffer datagram : this.send(new DatagramVideoWriter(this.client, 2), header, frame))
+            message = reassembler.accept(datagram);
+        assertArrayEquals(streamMessage(header, frame), message);
+        assertEquals(2, reassembler.getCompletedMessages());
+    }
+}
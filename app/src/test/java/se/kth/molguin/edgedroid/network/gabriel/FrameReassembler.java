@@ -0,0 +1,246 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.kth.molguin.edgedroid.network.gabriel;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reassembles video messages from the datagrams written by a {@link DatagramVideoWriter}.
+ * <p>
+ * Reference implementation of the receiving end of the datagram transport, as implemented by
+ * the backend, used to test the client side. Fragments may arrive in any order; a message is
+ * delivered as soon as all of its fragments are in, in the same format as on the TCP stream.
+ * Since only the latest frames matter, incomplete messages are dropped as soon as a later message
+ * completes, instead of waiting for retransmissions that will never come. Datagrams from a
+ * previous epoch (i.e. sent before the connections were reset) are discarded.
+ * <p>
+ * Losses are accounted for through the datagram sequence numbers. Duplicated datagrams are not
+ * expected on the paths we test on, and are not detected.
+ * <p>
+ * Not thread-safe.
+ */
+public class FrameReassembler {
+
+    public static final int DEFAULT_MAX_PENDING = 8;
+
+    private static final class Partial {
+        final byte[] data;
+        final boolean[] received;
+        int missing;
+        int length;
+
+        Partial(int count, int fragment_payload) {
+            this.data = new byte[count * fragment_payload];
+            this.received = new boolean[count];
+            this.missing = count;
+            this.length = -1; // unknown until the last fragment arrives
+        }
+    }
+
+    private final int fragment_payload;
+    private final int max_pending;
+    private final TreeMap<Integer, Partial> pending;
+
+    private int epoch;
+    private int last_completed;
+
+    // sequence number accounting for the current epoch
+    private boolean has_sequence;
+    private int first_sequence;
+    private int highest_sequence;
+    private long epoch_datagrams;
+
+    private long datagrams;
+    private long lost_datagrams; // in previous epochs
+    private long reordered;
+    private long stale;
+    private long malformed;
+    private long completed;
+    private long dropped;
+
+    public FrameReassembler() {
+        this(DatagramVideoWriter.MAX_FRAGMENT_PAYLOAD, DEFAULT_MAX_PENDING);
+    }
+
+    /**
+     * @param fragment_payload Payload size of all fragments but the last of each message.
+     * @param max_pending      Maximum number of incomplete messages to keep around.
+     */
+    public FrameReassembler(int fragment_payload, int max_pending) {
+        this.fragment_payload = fragment_payload;
+        this.max_pending = max_pending;
+        this.pending = new TreeMap<>();
+        this.epoch = -1;
+        this.last_completed = 0;
+        this.has_sequence = false;
+    }
+
+    /**
+     * Processes a single datagram.
+     *
+     * @param datagram Received datagram. It is consumed.
+     * @return The complete message if this datagram completed it, null otherwise.
+     */
+    public byte[] accept(@NonNull ByteBuffer datagram) {
+        if (datagram.remaining() < DatagramVideoWriter.HEADER_SIZE) {
+            this.malformed++;
+            return null;
+        }
+
+        final int epoch = datagram.getShort() & 0xFFFF;
+        final int index = datagram.getShort() & 0xFFFF;
+        final int count = datagram.getShort() & 0xFFFF;
+        datagram.getShort(); // reserved
+        final int sequence = datagram.getInt();
+        final int message = datagram.getInt();
+
+        if (epoch != this.epoch) {
+            // epochs are 16-bit counters, compare them like TCP sequence numbers
+            if (this.epoch >= 0 && (short) (epoch - this.epoch) < 0) {
+                this.stale++;
+                return null;
+            }
+            this.startEpoch(epoch);
+        }
+
+        this.datagrams++;
+        this.epoch_datagrams++;
+        if (!this.has_sequence) {
+            this.has_sequence = true;
+            this.first_sequence = sequence;
+            this.highest_sequence = sequence;
+        } else if (sequence - this.highest_sequence > 0)
+            this.highest_sequence = sequence;
+        else
+            this.reordered++;
+
+        final int payload_len = datagram.remaining();
+        if (count == 0 || index >= count || payload_len > this.fragment_payload
+                || (index < count - 1 && payload_len != this.fragment_payload)) {
+            this.malformed++;
+            return null;
+        }
+
+        if (message - this.last_completed <= 0)
+            return null; // late fragment of a message which was already delivered or dropped
+
+        Partial partial = this.pending.get(message);
+        if (partial == null) {
+            partial = new Partial(count, this.fragment_payload);
+            this.pending.put(message, partial);
+            if (this.pending.size() > this.max_pending) {
+                this.pending.pollFirstEntry();
+                this.dropped++;
+            }
+        } else if (partial.received.length != count) {
+            this.malformed++;
+            return null;
+        }
+
+        if (partial.received[index])
+            return null;
+
+        datagram.get(partial.data, index * this.fragment_payload, payload_len);
+        partial.received[index] = true;
+        partial.missing--;
+        if (index == count - 1)
+            partial.length = index * this.fragment_payload + payload_len;
+
+        if (partial.missing > 0)
+            return null;
+
+        // complete! everything older than this is of no use anymore
+        this.pending.remove(message);
+        final Iterator<Map.Entry<Integer, Partial>> it = this.pending.headMap(message).entrySet().iterator();
+        while (it.hasNext()) {
+            it.next();
+            it.remove();
+            this.dropped++;
+        }
+
+        this.last_completed = message;
+        this.completed++;
+        return partial.length == partial.data.length ?
+                partial.data : Arrays.copyOf(partial.data, partial.length);
+    }
+
+    private void startEpoch(int epoch) {
+        this.lost_datagrams += this.getEpochLosses();
+        this.dropped += this.pending.size();
+        this.pending.clear();
+
+        this.epoch = epoch;
+        this.last_completed = 0;
+        this.has_sequence = false;
+        this.epoch_datagrams = 0;
+    }
+
+    private long getEpochLosses() {
+        if (!this.has_sequence)
+            return 0;
+        final long expected = (this.highest_sequence - this.first_sequence) + 1L;
+        return Math.max(0, expected - this.epoch_datagrams);
+    }
+
+    /**
+     * @return Number of datagrams received from the current and previous epochs.
+     */
+    public long getDatagramsReceived() {
+        return this.datagrams;
+    }
+
+    /**
+     * @return Number of datagrams which never arrived, as per the gaps in their sequence numbers.
+     */
+    public long getLostDatagrams() {
+        return this.lost_datagrams + this.getEpochLosses();
+    }
+
+    /**
+     * @return Number of datagrams which arrived after a datagram with a higher sequence number.
+     */
+    public long getReorderedDatagrams() {
+        return this.reordered;
+    }
+
+    /**
+     * @return Number of datagrams discarded because they belonged to a previous epoch.
+     */
+    public long getStaleDatagrams() {
+        return this.stale;
+    }
+
+    public long getMalformedDatagrams() {
+        return this.malformed;
+    }
+
+    public long getCompletedMessages() {
+        return this.completed;
+    }
+
+    /**
+     * @return Number of messages which were dropped before all their fragments arrived.
+     */
+    public long getDroppedMessages() {
+        return this.dropped;
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.kth.molguin.edgedroid.network.gabriel;
+
+import org.json.JSONObject;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link ResultParser} against the nested JSONObject parsing it replaces, on payloads
+ * shaped like the ones recorded from the backend. The throughput comparison of both is ignored
+ * by default, and only meant to be run manually.
+ */
+public class ResultParserBenchmark {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int WARMUP_ITERATIONS = 50000;
+    private static final int ITERATIONS = 500000;
+
+    // result payloads as sent by the backend, i.e. with the result as an escaped JSON string
+    private static final String[] PAYLOADS = {
+            "{\"status\": \"success\", \"frame_id\": 1342, \"result\": \"{\\\"state_index\\\": 3, "
+                    + "\\\"speech\\\": \\\"Now put a 1x4 blue piece on top.\\\", "
+                    + "\\\"image\\\": [[0, 0, 1, 1], [2, 2, 2, 2]], "
+                    + "\\\"ti\\\": 1571740217.3627412, \\\"tf\\\": 1571740217.4051366}\", "
+                    + "\"engine_id\": \"LEGO_PYTHON\"}",
+            "{\"status\": \"nothing\", \"frame_id\": 1343, \"result\": \"{\\\"ti\\\": 1571740217.4612, "
+                    + "\\\"tf\\\": 1571740217.4709}\", \"engine_id\": \"LEGO_PYTHON\"}",
+            "{\"status\":\"success\",\"frame_id\":7,\"result\":\"{\\\"state_index\\\":0,"
+                    + "\\\"ti\\\":0.05,\\\"tf\\\":12.5}\"}",
+            "{\"frame_id\":8,\"status\":\"success\",\"result\":{\"state_index\":12,\"ti\":1.0,\"tf\":2.0}}",
+            "{\"status\":\"success\",\"frame_id\":9,\"result\":\"{\\\"state_index\\\":1}\"}",
+    };
+
+    private static byte[] bytes(String payload) {
+        return payload.getBytes(UTF8);
+    }
+
+    private static void assertMatchesJSON(ResultParser parser, String payload) throws Exception {
+        final JSONObject msg = new JSONObject(payload);
+        final Object result_field = msg.get(ProtocolConst.HEADER_MESSAGE_RESULT);
+        final JSONObject result = result_field instanceof JSONObject ?
+                (JSONObject) result_field : new JSONObject((String) result_field);
+
+        final boolean feedback = msg.getString(ProtocolConst.HEADER_MESSAGE_STATUS)
+                .equals(ProtocolConst.STATUS_SUCCESS);
+        final byte[] b = bytes(payload);
+        assertTrue(payload, parser.parse(b, 0, b.length));
+
+        assertEquals(feedback, parser.isSuccess());
+        assertEquals(msg.getLong(ProtocolConst.HEADER_MESSAGE_FRAME_ID), parser.getFrameId());
+        assertEquals(feedback ? result.getInt(ProtocolConst.HEADER_MESSAGE_STATE_IDX) : -1,
+                parser.getStateIndex());
+
+        final boolean has_timestamps = result.has(ProtocolConst.HEADER_MESSAGE_SERVER_RECV)
+                && result.has(ProtocolConst.HEADER_MESSAGE_SERVER_SEND);
+        assertEquals(has_timestamps, parser.hasServerTimestamps());
+        if (has_timestamps) {
+            // must be bit-for-bit identical to Double.parseDouble
+            assertEquals(result.getDouble(ProtocolConst.HEADER_MESSAGE_SERVER_RECV),
+                    parser.getServerRecv(), 0.0);
+            assertEquals(result.getDouble(ProtocolConst.HEADER_MESSAGE_SERVER_SEND),
+                    parser.getServerSent(), 0.0);
+        }
+    }
+
+    @Test
+    public void parserMatchesJSON() throws Exception {
+        final ResultParser parser = new ResultParser();
+        for (String payload : PAYLOADS)
+            assertMatchesJSON(parser, payload);
+    }
+
+    @Test
+    public void parserHandlesOffsets() throws Exception {
+        final ResultParser parser = new ResultParser();
+        final byte[] payload = bytes(PAYLOADS[2]);
+        final byte[] padded = new byte[payload.length + 10];
+        System.arraycopy(payload, 0, padded, 5, payload.length);
+
+        assertTrue(parser.parse(padded, 5, payload.length));
+        assertEquals(7, parser.getFrameId());
+        assertEquals(0.05, parser.getServerRecv(), 0.0);
+    }
+
+    @Test
+    public void parserRejectsUnexpectedMessages() {
+        final ResultParser parser = new ResultParser();
+        final String[] rejected = {
+                "",
+                "[]",
+                "{\"status\":\"success\",\"frame_id\":1}", // no result
+                "{\"status\":\"success\",\"frame_id\":1,\"result\":\"{}\"}", // no state index
+                "{\"status\":\"success\",\"frame_id\":1.5,\"result\":\"{\\\"state_index\\\":1}\"}",
+                "{\"status\":\"success\",\"frame_id\":1,\"result\":\"{\\\"state_index\\\":1,\\\"s\\\":\\\"\\u00e9\\\"}\"}",
+                "{\"status\":\"success\",\"frame_id\":1,\"result\":\"{\\\"state_index\\\":1}\"",
+        };
+        for (String payload : rejected) {
+            final byte[] b = bytes(payload);
+            assertFalse(payload, parser.parse(b, 0, b.length));
+        }
+    }
+
+    @Test
+    @Ignore("Timing only, run manually")
+    public void benchmark() throws Exception {
+        final ResultParser parser = new ResultParser();
+        final byte[][] payloads = new byte[PAYLOADS.length][];
+        for (int i = 0; i < PAYLOADS.length; i++)
+            payloads[i] = bytes(PAYLOADS[i]);
+
+        long sink = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            final byte[] b = payloads[i % payloads.length];
+            sink += parseJSON(b);
+            parser.parse(b, 0, b.length);
+            sink += parser.getFrameId();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            sink += parseJSON(payloads[i % payloads.length]);
+        final double json_ns = (System.nanoTime() - start) / (double) ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            final byte[] b = payloads[i % payloads.length];
+            parser.parse(b, 0, b.length);
+            sink += parser.getFrameId() + parser.getStateIndex();
+        }
+        final double parser_ns = (System.nanoTime() - start) / (double) ITERATIONS;
+
+        System.out.println(String.format(Locale.ENGLISH,
+                "JSONObject: %.1f ns/message, ResultParser: %.1f ns/message (%.1fx) [%d]",
+                json_ns, parser_ns, json_ns / parser_ns, sink));
+    }
+
+    /**
+     * The parsing done by Run before ResultParser was introduced.
+     */
+    private static long parseJSON(byte[] b) throws Exception {
+        final JSONObject msg = new JSONObject(new String(b, "UTF-8"));
+        final String status = msg.getString(ProtocolConst.HEADER_MESSAGE_STATUS);
+        final Object result_field = msg.get(ProtocolConst.HEADER_MESSAGE_RESULT);
+        final JSONObject result = result_field instanceof JSONObject ?
+                (JSONObject) result_field : new JSONObject((String) result_field);
+        final boolean feedback = status.equals(ProtocolConst.STATUS_SUCCESS);
+        final int state_index = feedback ? result.getInt(ProtocolConst.HEADER_MESSAGE_STATE_IDX) : -1;
+        final double server_recv = result.optDouble(ProtocolConst.HEADER_MESSAGE_SERVER_RECV, -1);
+        return msg.getLong(ProtocolConst.HEADER_MESSAGE_FRAME_ID) + state_index + (long) server_recv;
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.kth.molguin.edgedroid.network.gabriel;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hammers {@link TokenPool} from several threads taking tokens in all the ways the pool offers,
+ * while the window is resized underneath them, and checks that the window is never overrun and
+ * that no waiting thread is left behind.
+ */
+public class TokenPoolTest {
+
+    private static final int NUM_THREADS = 8;
+    private static final int NUM_ITERATIONS = 20000;
+    private static final int MAX_WINDOW = 4;
+    private static final long JOIN_TIMEOUT_MS = 30000;
+
+    private static final long TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long TIMEOUT_SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    /**
+     * Runs NUM_THREADS workers which repeatedly take a token, check the number of holders against
+     * the given bound and return it.
+     */
+    private static void runWorkers(final TokenPool pool, final int max_holders,
+                                   Thread resizer) throws Exception {
+        final AtomicInteger holders = new AtomicInteger(0);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        final Thread[] workers = new Thread[NUM_THREADS];
+        for (int t = 0; t < NUM_THREADS; t++) {
+            final int seed = t;
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final Random random = new Random(seed);
+                    try {
+                        start.await();
+                        for (int i = 0; i < NUM_ITERATIONS; i++) {
+                            final boolean got;
+                            switch (random.nextInt(3)) {
+                                case 0:
+                                    pool.getToken();
+                                    got = true;
+                                    break;
+                                case 1:
+                                    got = pool.tryGetToken();
+                                    break;
+                                default:
+                                    got = pool.getToken(TIMEOUT_NANOS);
+                                    break;
+                            }
+                            if (!got)
+                                continue;
+
+                            final int held = holders.incrementAndGet();
+                            if (held > max_holders)
+                                throw new AssertionError(held + " tokens in flight, bound is " + max_holders);
+                            if (random.nextInt(4) == 0)
+                                Thread.yield();
+                            holders.decrementAndGet();
+                            pool.putToken();
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+
+        if (resizer != null)
+            resizer.start();
+        start.countDown();
+
+        for (Thread worker : workers) {
+            worker.join(JOIN_TIMEOUT_MS);
+            assertFalse("Worker is stuck waiting for a token.", worker.isAlive());
+        }
+        if (resizer != null) {
+            resizer.interrupt();
+            resizer.join(JOIN_TIMEOUT_MS);
+        }
+
+        assertNull(failure.get());
+        assertEquals(0, holders.get());
+        assertEquals(0, pool.getInFlight());
+        assertEquals(pool.getAcquiredCount(), pool.getReturnedCount());
+    }
+
+    @Test
+    public void fixedWindow() throws Exception {
+        final TokenPool pool = new TokenPool(2);
+        runWorkers(pool, 2, null);
+        assertEquals(2, pool.getWindow());
+    }
+
+    @Test
+    public void resizedWindow() throws Exception {
+        final TokenPool pool = new TokenPool(1);
+        final Thread resizer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final Random random = new Random(NUM_THREADS);
+                while (!Thread.currentThread().isInterrupted()) {
+                    pool.setWindow(1 + random.nextInt(MAX_WINDOW));
+                    Thread.yield();
+                }
+                // leave the window open, so that blocked workers can finish
+                pool.setWindow(MAX_WINDOW);
+            }
+        });
+
+        runWorkers(pool, MAX_WINDOW, resizer);
+        assertEquals(MAX_WINDOW, pool.getWindow());
+    }
+
+    @Test
+    public void wakesAllWaiters() throws Exception {
+        final TokenPool pool = new TokenPool(1);
+        assertTrue(pool.tryGetToken());
+
+        final CountDownLatch done = new CountDownLatch(NUM_THREADS);
+        for (int t = 0; t < NUM_THREADS; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        pool.getToken();
+                        pool.putToken();
+                        done.countDown();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }).start();
+        }
+
+        // let the waiters queue up, then hand the single token around
+        Thread.sleep(100);
+        pool.putToken();
+        assertTrue(done.await(JOIN_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(0, pool.getInFlight());
+    }
+
+    @Test
+    public void timedWaitReturnsInTime() throws Exception {
+        final TokenPool pool = new TokenPool(1);
+        assertTrue(pool.tryGetToken());
+
+        final long start = System.nanoTime();
+        assertFalse(pool.getToken(TIMEOUT_NANOS));
+        final long elapsed = System.nanoTime() - start;
+        assertTrue(elapsed >= TIMEOUT_NANOS);
+        assertTrue(elapsed < TIMEOUT_NANOS + TIMEOUT_SLACK_NANOS);
+        assertEquals(1, pool.getWaitCount());
+
+        // a window grown while waiting hands out the new token straight away
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ignored) {
+                }
+                pool.setWindow(2);
+            }
+        }).start();
+        assertTrue(pool.getToken(TimeUnit.SECONDS.toNanos(10)));
+        assertEquals(2, pool.getInFlight());
+    }
+}
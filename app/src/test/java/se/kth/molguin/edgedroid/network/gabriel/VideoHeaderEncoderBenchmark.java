@@ -0,0 +1,96 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.kth.molguin.edgedroid.network.gabriel;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link VideoHeaderEncoder} against the String.format path it replaces
+ * ({@link ProtocolConst#VIDEO_HEADER_FMT}). The throughput comparison of both is ignored by
+ * default, and only meant to be run manually.
+ */
+public class VideoHeaderEncoderBenchmark {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int WARMUP_ITERATIONS = 200000;
+    private static final int ITERATIONS = 2000000;
+
+    private static String encode(VideoHeaderEncoder encoder) {
+        return new String(Arrays.copyOf(encoder.getBuffer(), encoder.getLength()), ASCII);
+    }
+
+    @Test
+    public void encoderMatchesFormatter() {
+        final VideoHeaderEncoder encoder = new VideoHeaderEncoder();
+        final int[] ids = {0, 1, 9, 10, 99, 100, 12345, -1, -10, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        for (int id : ids) {
+            encoder.encodeFrameHeader(id);
+            assertEquals(String.format(Locale.ENGLISH, ProtocolConst.VIDEO_HEADER_FMT, id), encode(encoder));
+        }
+    }
+
+    @Test
+    public void encoderHandlesMultipleFields() {
+        final VideoHeaderEncoder encoder = new VideoHeaderEncoder();
+        final VideoHeaderEncoder.Field ts = new VideoHeaderEncoder.Field("timestamp");
+
+        encoder.begin()
+                .put(VideoHeaderEncoder.FRAME_ID, 42)
+                .put(ts, Long.MAX_VALUE)
+                .put(ts, Long.MIN_VALUE)
+                .end();
+        assertEquals("{\"frame_id\":42,\"timestamp\":" + Long.MAX_VALUE
+                + ",\"timestamp\":" + Long.MIN_VALUE + "}", encode(encoder));
+
+        // buffer is reused between headers
+        encoder.encodeFrameHeader(7);
+        assertEquals("{\"frame_id\":7}", encode(encoder));
+    }
+
+    @Test
+    @Ignore("Timing only, run manually")
+    public void benchmark() {
+        final VideoHeaderEncoder encoder = new VideoHeaderEncoder();
+
+        long sink = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sink += String.format(Locale.ENGLISH, ProtocolConst.VIDEO_HEADER_FMT, i).getBytes().length;
+            sink += encoder.encodeFrameHeader(i).getLength();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            sink += String.format(Locale.ENGLISH, ProtocolConst.VIDEO_HEADER_FMT, i).getBytes().length;
+        final double format_ns = (System.nanoTime() - start) / (double) ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            sink += encoder.encodeFrameHeader(i).getLength();
+        final double encoder_ns = (System.nanoTime() - start) / (double) ITERATIONS;
+
+        System.out.println(String.format(Locale.ENGLISH,
+                "String.format: %.1f ns/header, VideoHeaderEncoder: %.1f ns/header (%.1fx) [%d]",
+                format_ns, encoder_ns, format_ns / encoder_ns, sink));
+    }
+}
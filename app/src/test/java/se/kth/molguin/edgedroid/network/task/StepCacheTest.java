@@ -0,0 +1,129 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.kth.molguin.edgedroid.network.task;
+
+import org.json.JSONException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static se.kth.molguin.edgedroid.network.task.StepTraceTest.assertFrames;
+import static se.kth.molguin.edgedroid.network.task.StepTraceTest.makeTrace;
+
+/**
+ * Checks the LRU eviction and the counters of {@link StepCache} over a backing source which
+ * counts how often it is asked for each step.
+ */
+public class StepCacheTest {
+
+    private static final int NUM_STEPS = 4;
+    private static final int[] FRAME_LENGTHS = {100, 100};
+
+    private byte[][] traces;
+    private int[] loads;
+    private TraceSource backing;
+
+    @Before
+    public void setUp() throws Exception {
+        this.traces = new byte[NUM_STEPS][];
+        for (int i = 0; i < NUM_STEPS; i++)
+            this.traces[i] = makeTrace(i + 1, FRAME_LENGTHS);
+        this.loads = new int[NUM_STEPS];
+        this.backing = new TraceSource() {
+            @Override
+            public StepTrace getStep(int index) throws IOException, JSONException {
+                StepCacheTest.this.loads[index]++;
+                final byte[] data = StepCacheTest.this.traces[index];
+                return new StepTrace(ByteBuffer.wrap(data), TraceIndex.build(data));
+            }
+        };
+    }
+
+    private int stepSize() {
+        return this.traces[0].length; // all steps have the same size
+    }
+
+    @Test
+    public void hitsAndMisses() throws Exception {
+        final StepCache cache = new StepCache(this.backing, NUM_STEPS * stepSize());
+
+        final StepTrace first = cache.getStep(0);
+        assertFrames(first, FRAME_LENGTHS);
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(stepSize(), cache.getCachedBytes());
+
+        assertSame(first, cache.getStep(0));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, this.loads[0]);
+
+        for (int i = 0; i < NUM_STEPS; i++)
+            cache.getStep(i);
+        assertEquals(2, cache.getHits());
+        assertEquals(NUM_STEPS, cache.getMisses());
+        assertEquals(0, cache.getEvictions());
+        assertEquals(NUM_STEPS * stepSize(), cache.getCachedBytes());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        final StepCache cache = new StepCache(this.backing, 2 * stepSize());
+
+        cache.getStep(0);
+        cache.getStep(1);
+        cache.getStep(0); // 1 is now the least recently used step
+        cache.getStep(2);
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2 * stepSize(), cache.getCachedBytes());
+
+        // 0 and 2 stay cached; touching 0 last leaves 2 to be pushed out by 1
+        cache.getStep(2);
+        cache.getStep(0);
+        cache.getStep(1);
+        assertEquals(1, this.loads[0]);
+        assertEquals(1, this.loads[2]);
+        assertEquals(2, this.loads[1]);
+        assertEquals(2, cache.getEvictions());
+
+        cache.getStep(0);
+        cache.getStep(2);
+        assertEquals(1, this.loads[0]);
+        assertEquals(2, this.loads[2]);
+        assertEquals(3, cache.getEvictions());
+        assertEquals(4, cache.getHits());
+        assertEquals(5, cache.getMisses());
+        assertEquals(2 * stepSize(), cache.getCachedBytes());
+    }
+
+    @Test
+    public void skipsStepsLargerThanBudget() throws Exception {
+        final StepCache cache = new StepCache(this.backing, stepSize() - 1);
+
+        final StepTrace trace = cache.getStep(0);
+        assertNotSame(trace, cache.getStep(0));
+        assertEquals(2, this.loads[0]);
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(0, cache.getEvictions());
+        assertEquals(0, cache.getCachedBytes());
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.kth.molguin.edgedroid.network.task;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Maps small step traces written to temporary files, with and without sidecar indexes, and
+ * warms up traces from all the places they can come from.
+ */
+public class StepTraceTest {
+
+    static byte[] makeTrace(int step, int[] frame_lengths) throws Exception {
+        final JSONObject header = new JSONObject();
+        header.put("name", "step" + step);
+        header.put("index", step);
+        header.put("num_frames", frame_lengths.length);
+        header.put("key_frame", 0);
+        final byte[] header_b = header.toString().getBytes("utf-8");
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(header_b.length);
+        out.write(header_b);
+        for (int i = 0; i < frame_lengths.length; i++) {
+            out.writeInt(frame_lengths[i]);
+            for (int j = 0; j < frame_lengths[i]; j++)
+                out.writeByte(i);
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static void writeFile(File file, byte[] data) throws IOException {
+        try (final FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+
+    static String md5(byte[] data) throws Exception {
+        final byte[] digest = MessageDigest.getInstance("MD5").digest(data);
+        return String.format("%032x", new BigInteger(1, digest)).toUpperCase(Locale.ENGLISH);
+    }
+
+    static void assertFrames(StepTrace trace, int[] frame_lengths) {
+        assertEquals(frame_lengths.length, trace.getNumFrames());
+        for (int i = 0; i < frame_lengths.length; i++) {
+            final ByteBuffer frame = trace.getFrame(i);
+            assertEquals(frame_lengths[i], frame.remaining());
+            while (frame.hasRemaining())
+                assertEquals(i, frame.get());
+        }
+    }
+
+    @Test
+    public void mapUsesSidecarIndex() throws Exception {
+        final int[] lengths = {10, 20, 30};
+        final byte[] data = makeTrace(1, lengths);
+        final File trace_file = File.createTempFile("step", ".trace");
+        final File index_file = TraceIndex.indexFileFor(trace_file);
+        try {
+            writeFile(trace_file, data);
+            TraceIndex.build(data).write(index_file, trace_file.lastModified());
+
+            final TraceIndex index = TraceIndex.read(index_file);
+            assertTrue(index.matches(trace_file.length(), trace_file.lastModified()));
+            assertFrames(StepTrace.map(trace_file), lengths);
+        } finally {
+            index_file.delete();
+            trace_file.delete();
+        }
+    }
+
+    @Test
+    public void mapRebuildsIndexOfReplacedTrace() throws Exception {
+        final int[] old_lengths = {10, 20, 30};
+        final int[] new_lengths = {30, 20, 10};
+        final byte[] old_data = makeTrace(1, old_lengths);
+        final byte[] new_data = makeTrace(1, new_lengths);
+        assertEquals(old_data.length, new_data.length);
+
+        final File trace_file = File.createTempFile("step", ".trace");
+        final File index_file = TraceIndex.indexFileFor(trace_file);
+        try {
+            writeFile(trace_file, old_data);
+            TraceIndex.build(old_data).write(index_file, trace_file.lastModified());
+            final long old_mtime = trace_file.lastModified();
+
+            // same length, different frame boundaries; the stale index must not be used
+            writeFile(trace_file, new_data);
+            assertTrue(trace_file.setLastModified(old_mtime + 2000));
+
+            assertFalse(TraceIndex.read(index_file)
+                    .matches(trace_file.length(), trace_file.lastModified()));
+            assertFrames(StepTrace.map(trace_file), new_lengths);
+        } finally {
+            index_file.delete();
+            trace_file.delete();
+        }
+    }
+
+    @Test
+    public void warmUpOnlyLoadsFileMappings() throws Exception {
+        final int[] lengths = {100, 200, 300};
+        final byte[] data = makeTrace(1, lengths);
+        final File trace_file = File.createTempFile("step", ".trace");
+        final File archive_file = File.createTempFile("steps", ".archive");
+        try {
+            writeFile(trace_file, data);
+            final TraceSource source = new TraceSource() {
+                @Override
+                public StepTrace getStep(int index) throws IOException, JSONException {
+                    return StepTrace.map(trace_file);
+                }
+            };
+
+            final StepTrace plain = source.getStep(0);
+            plain.warmUp();
+            assertFrames(plain, lengths);
+
+            TraceArchive.pack(archive_file, new TraceSource[]{source}, new String[]{md5(data)});
+            final StepTrace archived = TraceArchive.map(archive_file).getStep(0);
+            archived.warmUp();
+            assertFrames(archived, lengths);
+
+            final StepTrace cached = new StepCache(source, data.length).getStep(0);
+            cached.warmUp();
+            assertFrames(cached, lengths);
+        } finally {
+            archive_file.delete();
+            trace_file.delete();
+        }
+    }
+}
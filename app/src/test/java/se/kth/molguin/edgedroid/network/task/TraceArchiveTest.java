@@ -0,0 +1,147 @@
+/**
+ * Copyright 2019 Manuel Olguín
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.kth.molguin.edgedroid.network.task;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static se.kth.molguin.edgedroid.network.task.StepTraceTest.assertFrames;
+import static se.kth.molguin.edgedroid.network.task.StepTraceTest.makeTrace;
+import static se.kth.molguin.edgedroid.network.task.StepTraceTest.md5;
+
+/**
+ * Packs step traces into archives and reads them back.
+ */
+public class TraceArchiveTest {
+
+    private static final int[][] FRAME_LENGTHS = {{10, 20, 30}, {5}, {40, 1, 40, 1}};
+
+    private static TraceSource arraySource(final byte[][] traces) {
+        return new TraceSource() {
+            @Override
+            public StepTrace getStep(int index) throws IOException, JSONException {
+                final byte[] data = traces[index];
+                return new StepTrace(ByteBuffer.wrap(data), TraceIndex.build(data));
+            }
+        };
+    }
+
+    private static File packArchive(byte[][] traces) throws Exception {
+        final TraceSource source = arraySource(traces);
+        final TraceSource[] sources = new TraceSource[traces.length];
+        final String[] checksums = new String[traces.length];
+        for (int i = 0; i < traces.length; i++) {
+            sources[i] = source;
+            checksums[i] = md5(traces[i]);
+        }
+
+        final File archive_file = File.createTempFile("steps", ".archive");
+        TraceArchive.pack(archive_file, sources, checksums);
+        return archive_file;
+    }
+
+    private static byte[][] makeTraces() throws Exception {
+        final byte[][] traces = new byte[FRAME_LENGTHS.length][];
+        for (int i = 0; i < traces.length; i++)
+            traces[i] = makeTrace(i + 1, FRAME_LENGTHS[i]);
+        return traces;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        final byte[][] traces = makeTraces();
+        final File archive_file = packArchive(traces);
+        try {
+            final TraceArchive archive = TraceArchive.map(archive_file);
+            assertEquals(traces.length, archive.getNumSteps());
+            for (int i = 0; i < traces.length; i++) {
+                final StepTrace step = archive.getStep(i);
+                assertEquals(i, step.getStepIndex());
+                assertEquals("step" + (i + 1), step.getName());
+                assertEquals(traces[i].length, step.getSize());
+                assertFrames(step, FRAME_LENGTHS[i]);
+
+                // steps are only built once
+                assertSame(step, archive.getStep(i));
+            }
+
+            assertNull(archive.getChecksum(traces.length));
+            try {
+                archive.getStep(traces.length);
+                fail("Step outside of the archive was returned.");
+            } catch (IOException ignored) {
+            }
+        } finally {
+            archive_file.delete();
+        }
+    }
+
+    @Test
+    public void checksums() throws Exception {
+        final byte[][] traces = makeTraces();
+        final File archive_file = packArchive(traces);
+        try {
+            final TraceArchive archive = TraceArchive.map(archive_file);
+            for (int i = 0; i < traces.length; i++) {
+                assertEquals(md5(traces[i]), archive.getChecksum(i));
+                assertEquals(md5(traces[i]), archive.computeChecksum(i));
+            }
+
+            // flip the last byte of the last step; the header still reports the old checksum
+            final int last = traces.length - 1;
+            try (RandomAccessFile f = new RandomAccessFile(archive_file, "rw")) {
+                f.seek(f.length() - 1);
+                final int b = f.read();
+                f.seek(f.length() - 1);
+                f.write(b ^ 0xff);
+            }
+
+            final TraceArchive corrupted = TraceArchive.map(archive_file);
+            assertEquals(md5(traces[last]), corrupted.getChecksum(last));
+            assertFalse(md5(traces[last]).equals(corrupted.computeChecksum(last)));
+            for (int i = 0; i < last; i++)
+                assertEquals(md5(traces[i]), corrupted.computeChecksum(i));
+        } finally {
+            archive_file.delete();
+        }
+    }
+
+    @Test
+    public void rejectsInvalidChecksums() throws Exception {
+        final byte[][] traces = makeTraces();
+        final File archive_file = File.createTempFile("steps", ".archive");
+        archive_file.delete();
+        try {
+            TraceArchive.pack(archive_file, new TraceSource[]{arraySource(traces)}, new String[]{"1234"});
+            fail("Archive was packed with an invalid checksum.");
+        } catch (IOException ignored) {
+            assertFalse(archive_file.exists());
+        } finally {
+            new File(archive_file.getPath() + ".tmp").delete();
+            archive_file.delete();
+        }
+    }
+}